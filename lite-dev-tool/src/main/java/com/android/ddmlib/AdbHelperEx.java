@@ -32,6 +32,34 @@ public class AdbHelperEx {
         }
     }
 
+    /**
+     * Opens a device service such as "exec:cmd" or "shell:", the returned channel is
+     * blocking and positioned at the output of the service.
+     */
+    public static SocketChannel openService(Device device, String service)
+            throws AdbHelper.TimeoutException, AdbHelper.AdbCommandRejectedException,
+            IOException {
+        final SocketChannel adbChan = SocketChannel.open(AndroidDebugBridge.getSocketAddress());
+        boolean ok = false;
+        try {
+            adbChan.configureBlocking(false);
+            AdbHelper.setDevice(adbChan, device);
+            AdbHelper.write(adbChan, formAdbRequest(service));
+            AdbHelper.AdbResponse resp = readAdbResponse(adbChan, false);
+            if (!resp.okay) {
+                throw new AdbHelper.AdbCommandRejectedException(resp.message);
+            }
+            adbChan.configureBlocking(true);
+            adbChan.socket().setTcpNoDelay(true);
+            ok = true;
+            return adbChan;
+        } finally {
+            if (!ok) {
+                adbChan.close();
+            }
+        }
+    }
+
     public static void enableDdmLog(String level) {
         DdmPreferences.setLogLevel(level);
     }
@@ -26,7 +26,8 @@ public class CommandReceiverTask implements Runnable {
     private static final int DEVICE_POLL_INTERVAL_MSEC = 2000;
 
     private final Device mDevice;
-    private final LogCatOutputReceiver mReceiver;
+    private final OutputReceiver mReceiver;
+    private final IShellOutputReceiver mShellReceiver;
     private final AtomicBoolean mCancelled;
     private final String mCommand;
 
@@ -34,7 +35,40 @@ public class CommandReceiverTask implements Runnable {
             @NonNull Logger logger) {
         mDevice = device;
         mCancelled = new AtomicBoolean();
-        mReceiver = new LogCatOutputReceiver(logger, mCancelled);
+        final LogCatOutputReceiver receiver = new LogCatOutputReceiver(logger, mCancelled);
+        mReceiver = receiver;
+        mShellReceiver = receiver;
+        mCommand = cmd;
+    }
+
+    /**
+     * The receiver gets the raw output, it is not called after the task is stopped.
+     */
+    public CommandReceiverTask(@NonNull Device device, @NonNull String cmd,
+            @NonNull OutputReceiver receiver) {
+        mDevice = device;
+        mCancelled = new AtomicBoolean();
+        mReceiver = receiver;
+        mShellReceiver = new IShellOutputReceiver() {
+            @Override
+            public void addOutput(byte[] data, int offset, int length) {
+                if (!mCancelled.get()) {
+                    receiver.addOutput(data, offset, length);
+                }
+            }
+
+            @Override
+            public void flush() {
+                if (!mCancelled.get()) {
+                    receiver.flush();
+                }
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return mCancelled.get();
+            }
+        };
         mCommand = cmd;
     }
 
@@ -50,7 +84,7 @@ public class CommandReceiverTask implements Runnable {
         }
 
         try {
-            mDevice.executeShellCommand(mCommand, mReceiver, 0, TimeUnit.SECONDS);
+            mDevice.executeShellCommand(mCommand, mShellReceiver, 0, TimeUnit.SECONDS);
         } catch (AdbHelper.TimeoutException e) {
             mReceiver.onStop("Connection timed out");
         } catch (AdbHelper.AdbCommandRejectedException ignored) {
@@ -77,7 +111,13 @@ public class CommandReceiverTask implements Runnable {
         void onStop(String reason);
     }
 
-    public static class LogCatOutputReceiver extends MultiLineReceiver {
+    public interface OutputReceiver {
+        void addOutput(byte[] data, int offset, int length);
+        void flush();
+        void onStop(String reason);
+    }
+
+    public static class LogCatOutputReceiver extends MultiLineReceiver implements OutputReceiver {
         private final AtomicBoolean mCancelled;
         private final Logger mLogger;
 
@@ -101,6 +141,7 @@ public class CommandReceiverTask implements Runnable {
             mLogger.onLog(lines);
         }
 
+        @Override
         public void onStop(String reason) {
             mLogger.onStop(reason);
         }
@@ -20,6 +20,8 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeoutException;
 
@@ -27,6 +29,8 @@ import java.util.concurrent.TimeoutException;
  * Data representing an image taken from a device frame buffer.
  */
 public final class RawImage {
+    private static final int ROTATE_BLOCK = 64;
+
     public int version;
     public int bpp;
     public int size;
@@ -153,18 +157,56 @@ public final class RawImage {
         rotated.width = this.height;
         rotated.height = this.width;
 
-        int count = this.data.length;
-        rotated.data = new byte[count];
+        rotated.data = new byte[this.data.length];
 
-        int byteCount = this.bpp >> 3; // bpp is in bits, we want bytes to match our array
         final int w = this.width;
         final int h = this.height;
-        for (int y = 0 ; y < h ; y++) {
-            for (int x = 0 ; x < w ; x++) {
-                System.arraycopy(
-                        this.data, (y * w + x) * byteCount,
-                        rotated.data, ((w-x-1) * h + y) * byteCount,
-                        byteCount);
+        // The pixels are transposed in square blocks through views of the byte arrays, so
+        // each output row of a block is written sequentially while its reads stay in the
+        // cache lines of the block.
+        if (this.bpp == 32) {
+            final IntBuffer src = ByteBuffer.wrap(this.data)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+            final IntBuffer dst = ByteBuffer.wrap(rotated.data)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+            for (int bx = 0; bx < w; bx += ROTATE_BLOCK) {
+                final int ex = Math.min(bx + ROTATE_BLOCK, w);
+                for (int by = 0; by < h; by += ROTATE_BLOCK) {
+                    final int ey = Math.min(by + ROTATE_BLOCK, h);
+                    for (int x = bx; x < ex; x++) {
+                        final int o = (w - x - 1) * h;
+                        for (int y = by, i = by * w + x; y < ey; y++, i += w) {
+                            dst.put(o + y, src.get(i));
+                        }
+                    }
+                }
+            }
+        } else if (this.bpp == 16) {
+            final ShortBuffer src = ByteBuffer.wrap(this.data)
+                    .order(ByteOrder.nativeOrder()).asShortBuffer();
+            final ShortBuffer dst = ByteBuffer.wrap(rotated.data)
+                    .order(ByteOrder.nativeOrder()).asShortBuffer();
+            for (int bx = 0; bx < w; bx += ROTATE_BLOCK) {
+                final int ex = Math.min(bx + ROTATE_BLOCK, w);
+                for (int by = 0; by < h; by += ROTATE_BLOCK) {
+                    final int ey = Math.min(by + ROTATE_BLOCK, h);
+                    for (int x = bx; x < ex; x++) {
+                        final int o = (w - x - 1) * h;
+                        for (int y = by, i = by * w + x; y < ey; y++, i += w) {
+                            dst.put(o + y, src.get(i));
+                        }
+                    }
+                }
+            }
+        } else {
+            int byteCount = this.bpp >> 3; // bpp is in bits, we want bytes to match our array
+            for (int y = 0 ; y < h ; y++) {
+                for (int x = 0 ; x < w ; x++) {
+                    System.arraycopy(
+                            this.data, (y * w + x) * byteCount,
+                            rotated.data, ((w-x-1) * h + y) * byteCount,
+                            byteCount);
+                }
             }
         }
 
@@ -235,8 +277,22 @@ public final class RawImage {
     public static RawImage getFrameBuffer(InetSocketAddress adbSockAddr, Device device)
             throws IOException, TimeoutException,
             AdbHelper.AdbCommandRejectedException, AdbHelper.TimeoutException {
+        return getFrameBuffer(adbSockAddr, device, null);
+    }
 
-        RawImage imageParams = new RawImage();
+    /**
+     * Retrieve the frame buffer from the device into <var>reuse</var> if it is not null.
+     * The data array of <var>reuse</var> is kept if the frame has the same size, so
+     * polling a device does not allocate a new frame each time.
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws AdbHelper.AdbCommandRejectedException if adb rejects the command
+     * @throws IOException in case of I/O error on the connection.
+     */
+    public static RawImage getFrameBuffer(InetSocketAddress adbSockAddr, Device device,
+            RawImage reuse) throws IOException, TimeoutException,
+            AdbHelper.AdbCommandRejectedException, AdbHelper.TimeoutException {
+
+        RawImage imageParams = reuse != null ? reuse : new RawImage();
         byte[] request = AdbHelper.formAdbRequest("framebuffer:");
         byte[] nudge = {
             0
@@ -288,7 +344,10 @@ public final class RawImage {
 
             AdbHelper.write(adbChan, nudge);
 
-            reply = new byte[imageParams.size];
+            reply = imageParams.data;
+            if (reply == null || reply.length != imageParams.size) {
+                reply = new byte[imageParams.size];
+            }
             AdbHelper.read(adbChan, reply);
 
             imageParams.data = reply;
@@ -21,15 +21,14 @@ import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
 import org.jf.dexlib2.iface.Method;
 import org.rh.ldt.util.DexUtilEx;
+import org.rh.ldt.util.LongIntMap;
+import org.rh.ldt.util.StringTable;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
@@ -47,46 +46,33 @@ public class DexDiff {
 
     public static void diff(Param param) throws IOException {
         long s = System.currentTimeMillis();
-        HashMap<String, List<Method>> cms1 = new HashMap<>();
+        // The methods are grouped by the id of source filename in both lists.
+        StringTable srcNames = new StringTable(1024);
+        ArrayList<ArrayList<Method>> cms1 = new ArrayList<>();
         for (DexBackedDexFile df : DexUtilEx.loadMultiDex(new File(param.dexF1))) {
-            collectMethodsByKeyword(df, param.keywords, cms1);
+            collectMethodsByKeyword(df, param.keywords, srcNames, cms1);
         }
-        HashMap<String, List<Method>> cms2 = new HashMap<>();
+        ArrayList<ArrayList<Method>> cms2 = new ArrayList<>();
         for (DexBackedDexFile df : DexUtilEx.loadMultiDex(new File(param.dexF2))) {
-            collectMethodsByKeyword(df, param.keywords, cms2);
+            collectMethodsByKeyword(df, param.keywords, srcNames, cms2);
         }
 
-        HashSet<String> matchedSrcFiles = new HashSet<>();
-        matchedSrcFiles.addAll(cms1.keySet());
-        matchedSrcFiles.addAll(cms2.keySet());
-
         // dexFile -> className -> remain methods
         ArrayList<HashMap<String, ArrayList<Method>>> diffResult1 = new ArrayList<>();
         ArrayList<HashMap<String, ArrayList<Method>>> diffResult2 = new ArrayList<>();
-        for (String srcName : matchedSrcFiles) {
-            List<Method> ms1 = cms1.get(srcName);
-            List<Method> ms2 = cms2.get(srcName);
+        TreeSet<String> diffFiles = new TreeSet<>();
+        for (int id = 0; id < srcNames.size(); id++) {
+            ArrayList<Method> ms1 = id < cms1.size() ? cms1.get(id) : null;
+            ArrayList<Method> ms2 = id < cms2.size() ? cms2.get(id) : null;
             if (ms1 == null || ms2 == null) {
-                continue;
-            }
-            Iterator<Method> m1i = ms1.iterator();
-            while (m1i.hasNext()) {
-                Method m1 = m1i.next();
-                Iterator<Method> m2i = ms2.iterator();
-                while (m2i.hasNext()) {
-                    Method m2 = m2i.next();
-                    if (DexUtilEx.isSameMethod(m1, m2)) {
-                        m1i.remove();
-                        m2i.remove();
-                        break;
-                    }
+                if (ms1 != null || ms2 != null) {
+                    diffFiles.add(srcNames.get(id));
                 }
+                continue;
             }
-            if (ms1.isEmpty()) {
-                cms1.remove(srcName);
-            }
-            if (ms2.isEmpty()) {
-                cms2.remove(srcName);
+            removeSameMethods(ms1, ms2);
+            if (!ms1.isEmpty() || !ms2.isEmpty()) {
+                diffFiles.add(srcNames.get(id));
             }
             if (param.w1 != null) {
                 diffResult1.add(arrangeMethodByClass(ms1));
@@ -95,9 +81,6 @@ public class DexDiff {
                 diffResult2.add(arrangeMethodByClass(ms2));
             }
         }
-        TreeSet<String> diffFiles = new TreeSet<>();
-        diffFiles.addAll(cms1.keySet());
-        diffFiles.addAll(cms2.keySet());
         if (param.w1 != null) {
             write(param, param.w1, diffFiles, diffResult1);
         }
@@ -107,6 +90,44 @@ public class DexDiff {
         DLog.i("DexMethodDiff cost " + (System.currentTimeMillis() - s) + " ms");
     }
 
+    /**
+     * Removes the methods which exist in both lists. The candidates are found by
+     * signature hash, so it doesn't need to compare every pair.
+     */
+    static void removeSameMethods(ArrayList<Method> ms1, ArrayList<Method> ms2) {
+        final int n2 = ms2.size();
+        // Chains of the indexes in ms2 with the same hash, in ascending order.
+        final LongIntMap heads = new LongIntMap(n2);
+        final int[] next = new int[n2];
+        for (int j = n2 - 1; j >= 0; j--) {
+            final long h = DexUtilEx.getMethodHash(ms2.get(j));
+            next[j] = heads.get(h, -1);
+            heads.put(h, j);
+        }
+        final boolean[] matched = new boolean[n2];
+        int remain = 0;
+        for (int i = 0; i < ms1.size(); i++) {
+            final Method m1 = ms1.get(i);
+            int j = heads.get(DexUtilEx.getMethodHash(m1), -1);
+            while (j >= 0 && (matched[j] || !DexUtilEx.isSameMethod(m1, ms2.get(j)))) {
+                j = next[j];
+            }
+            if (j >= 0) {
+                matched[j] = true;
+            } else {
+                ms1.set(remain++, m1);
+            }
+        }
+        ms1.subList(remain, ms1.size()).clear();
+        remain = 0;
+        for (int j = 0; j < n2; j++) {
+            if (!matched[j]) {
+                ms2.set(remain++, ms2.get(j));
+            }
+        }
+        ms2.subList(remain, n2).clear();
+    }
+
     static void write(Param param, Writer w, Set<String> diffFiles,
             ArrayList<HashMap<String, ArrayList<Method>>> diffResult) throws IOException {
         StringBuilder sb = new StringBuilder();
@@ -156,8 +177,8 @@ public class DexDiff {
         return arrangeByClass;
     }
 
-    public static void collectMethodsByKeyword(DexFile df,
-            String[] keywords, HashMap<String, List<Method>> cms) {
+    public static void collectMethodsByKeyword(DexFile df, String[] keywords,
+            StringTable srcNames, ArrayList<ArrayList<Method>> cms) {
         for (ClassDef c : df.getClasses()) {
             String srcFilename = c.getSourceFile();
             if (srcFilename == null) {
@@ -185,7 +206,15 @@ public class DexDiff {
                 }
             }
 
-            List<Method> ms = cms.computeIfAbsent(srcFilename, k -> new LinkedList<>());
+            final int id = srcNames.intern(srcFilename);
+            while (cms.size() <= id) {
+                cms.add(null);
+            }
+            ArrayList<Method> ms = cms.get(id);
+            if (ms == null) {
+                ms = new ArrayList<>();
+                cms.set(id, ms);
+            }
             for (Method m : c.getMethods()) {
                 if (DexUtilEx.isSyntheticMethod(m)) {
                     continue;
@@ -57,6 +57,8 @@ public class Env {
     public static final String PROP_TOOL_PATH = "tool-path";
     public static final String PROP_WORKSPACE = "workspace";
     public static final String PROP_OVERWRITE_INIT_PROJECT = "overwrite-init-project";
+    public static final String PROP_LOGCAT_SPOOL = "logcat-spool";
+    public static final String PROP_LOGCAT_SPOOL_MAX_MB = "logcat-spool-max-mb";
     public static final String DEFAULT_TOOL_PATH =
             new File(Env.MY_DIR, "tools").getAbsolutePath();
     public static final String DEFAULT_WORKSPACE =
@@ -192,6 +194,15 @@ public class Env {
         return get(PROP_OVERWRITE_INIT_PROJECT, "true").equals("true");
     }
 
+    public static boolean isLogcatSpoolEnabled() {
+        return get(PROP_LOGCAT_SPOOL, "true").equals("true");
+    }
+
+    // The total size of the spooled logcat sessions, older sessions are deleted over it.
+    public static long getLogcatSpoolMaxBytes() {
+        return getInt(PROP_LOGCAT_SPOOL_MAX_MB, 2048) * 1024L * 1024L;
+    }
+
     public static String getWorkspace() {
         return get(Env.PROP_WORKSPACE, DEFAULT_WORKSPACE);
     }
@@ -18,10 +18,12 @@ package org.rh.ldt.ui;
 
 import org.jf.dexlib2.dexbacked.DexBackedClassDef;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
 import org.rh.ldt.DLog;
 import org.rh.ldt.util.DexUtilEx;
 import org.rh.ldt.util.FileUtil;
+import org.rh.ldt.util.SmaliCache;
 import org.rh.ldt.util.SmaliUtil;
 
 import javax.swing.JComponent;
@@ -37,11 +39,15 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 class ApkDexTree extends Droppable.TreeView {
     private final ArrayList<NodeWrapper> mSelections = new ArrayList<>();
+    private final ArrayList<Future<Void>> mLoadTasks = new ArrayList<>();
+    private volatile int mLoadGeneration;
     private OpenAction mOpenAction;
 
     static JComponent create(OpenAction action) {
@@ -53,9 +59,17 @@ class ApkDexTree extends Droppable.TreeView {
     static class OpenData {
         final public NodeDex dex;
         final public NodeClass cls;
+        final public List<ClassDef> siblings;
         OpenData(NodeDex dex, NodeClass cls) {
             this.dex = dex;
             this.cls = cls;
+            final javax.swing.tree.TreeNode parent = cls.getParent();
+            siblings = new ArrayList<>(parent.getChildCount());
+            for (int i = 0; i < parent.getChildCount(); i++) {
+                if (parent.getChildAt(i) instanceof NodeClass) {
+                    siblings.add(((NodeClass) parent.getChildAt(i)).classDef);
+                }
+            }
         }
     }
 
@@ -83,27 +97,36 @@ class ApkDexTree extends Droppable.TreeView {
                     }, "classes.dex", false);
                 } else if (node instanceof NodeClass) {
                     final NodeClass cls = (NodeClass) node;
-                    MainUi.saveToFile(path -> {
-                        cls.smaliContent = SmaliUtil.getSmaliContent(cls.classDef);
-                        FileUtil.writeTextFile(path.getAbsolutePath(), cls.smaliContent);
-                    }, cls.simpleName + ".smali", false);
+                    MainUi.saveToFile(path -> MainUi.execTask(() -> FileUtil.writeTextFile(
+                            path, SmaliCache.getInstance().getSmali(cls.classDef))),
+                            cls.simpleName + ".smali", false);
                 } else if (node instanceof NodePackage) {
                     final NodePackage pkg = (NodePackage) node;
-                    MainUi.saveToFile(path -> {
-                        FileUtil.mkdirs(path);
-                        for (int i = 0; i < pkg.getChildCount(); i++) {
-                            NodeClass cls = (NodeClass) pkg.getChildAt(i);
-                            cls.smaliContent = SmaliUtil.getSmaliContent(cls.classDef);
-                            FileUtil.writeTextFile(FileUtil.path(
-                                    path.getAbsolutePath(), cls.simpleName + ".smali")
-                                    , cls.smaliContent);
-                        }
-                    }, pkg.name, true);
+                    final ArrayList<ClassDef> classes = new ArrayList<>(pkg.getChildCount());
+                    for (int i = 0; i < pkg.getChildCount(); i++) {
+                        classes.add(((NodeClass) pkg.getChildAt(i)).classDef);
+                    }
+                    MainUi.saveToFile(path -> MainUi.execTask(
+                            () -> SmaliUtil.exportSmali(classes, path, true)), pkg.name, true);
                 }
             }
             mSelections.clear();
         });
         popMenu.add(save);
+        final JMenuItem export = new JMenuItem("Export smali");
+        export.addActionListener(e -> {
+            for (NodeWrapper node : mSelections) {
+                if (node instanceof NodeDex) {
+                    final NodeDex dex = (NodeDex) node;
+                    final DexFile df = dex.modifiedDex != null ? dex.modifiedDex : dex.dexFile;
+                    MainUi.saveToFile(path -> MainUi.execTask(
+                            () -> SmaliUtil.exportSmali(df.getClasses(), path, false)),
+                            dex.filename.replace('/', '_') + "_smali", true);
+                }
+            }
+            mSelections.clear();
+        });
+        popMenu.add(export);
 
         addMouseListener(new java.awt.event.MouseAdapter() {
 
@@ -156,6 +179,11 @@ class ApkDexTree extends Droppable.TreeView {
                         }
                     }
                     if (!mSelections.isEmpty()) {
+                        boolean hasDex = false;
+                        for (NodeWrapper node : mSelections) {
+                            hasDex |= node instanceof NodeDex;
+                        }
+                        export.setEnabled(hasDex);
                         popMenu.show(e.getComponent(), e.getX(), e.getY());
                     }
                 }
@@ -165,29 +193,56 @@ class ApkDexTree extends Droppable.TreeView {
 
     @Override
     public void onDrop(final File[] files) {
-        final ArrayList<DefaultMutableTreeNode> clsList = new ArrayList<>();
-        MainUi.execTask(new MainUi.Task() {
-            @Override
-            public void run() {
-                for (File f : files) {
-                    if (f.isDirectory()) {
-                        continue;
+        // A new drop replaces the previous one, drop the pending results.
+        final int generation = ++mLoadGeneration;
+        for (Future<Void> f : mLoadTasks) {
+            f.cancel(false);
+        }
+        mLoadTasks.clear();
+
+        final DefaultMutableTreeNode root = new DefaultMutableTreeNode();
+        final DefaultTreeModel model = new DefaultTreeModel(root);
+        setModel(model);
+
+        final ArrayList<File> targets = new ArrayList<>(files.length);
+        for (File f : files) {
+            if (!f.isDirectory()) {
+                targets.add(f);
+            }
+        }
+        final int total = targets.size();
+        final AtomicInteger loaded = new AtomicInteger();
+        for (final File f : targets) {
+            final ArrayList<DefaultMutableTreeNode> dexNodes = new ArrayList<>();
+            mLoadTasks.add(MainUi.execTask(new MainUi.Task() {
+                @Override
+                public void run() {
+                    if (generation != mLoadGeneration) {
+                        return;
                     }
+                    final long s = System.currentTimeMillis();
                     List<DexBackedDexFile> dfs = DexUtilEx.loadMultiDex(f);
-                    for (int i = 0; i < dfs.size(); i++) {
-                        DexBackedDexFile df = dfs.get(i);
-                        clsList.add(getClassesTree(f, df, i));
+                    for (int i = 0; i < dfs.size() && generation == mLoadGeneration; i++) {
+                        dexNodes.add(getClassesTree(f, dfs.get(i), i));
                     }
+                    DLog.i("Loaded " + f.getName() + " (" + loaded.incrementAndGet() + "/" + total
+                            + "), " + (System.currentTimeMillis() - s) + "ms");
                 }
-            }
 
-            @Override
-            public void done() {
-                DefaultMutableTreeNode root = new DefaultMutableTreeNode();
-                clsList.forEach(root::add);
-                setModel(new DefaultTreeModel(root));
-            }
-        });
+                @Override
+                public void done() {
+                    if (generation != mLoadGeneration) {
+                        return;
+                    }
+                    for (DefaultMutableTreeNode node : dexNodes) {
+                        model.insertNodeInto(node, root, root.getChildCount());
+                    }
+                    if (root.getChildCount() == dexNodes.size()) {
+                        expandPath(new TreePath(root));
+                    }
+                }
+            }));
+        }
     }
 
     private static DefaultMutableTreeNode getClassesTree(File f, DexBackedDexFile df, int i) {
@@ -291,7 +346,6 @@ class NodeClass extends NodeWrapper implements Comparable<NodeClass> {
     public final DexBackedClassDef classDef;
     public final String simpleName;
     public final File file;
-    public String smaliContent;
 
     NodeClass(DexBackedClassDef c, File f, String n) {
         classDef = c;
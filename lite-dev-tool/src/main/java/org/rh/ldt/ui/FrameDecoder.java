@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.ldt.ui;
+
+import com.android.ddmlib.RawImage;
+
+import org.rh.ldt.DLog;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts the pixels of a RawImage into the int array of an ARGB BufferedImage.
+ * The common framebuffer layouts are recognized once per frame and converted with
+ * whole int reads, a large screen is converted in bands of rows in parallel.
+ */
+final class FrameDecoder {
+    static final int LAYOUT_GENERIC = 0;
+    static final int LAYOUT_RGBA_8888 = 1;
+    static final int LAYOUT_RGBX_8888 = 2;
+    static final int LAYOUT_BGRA_8888 = 3;
+    static final int LAYOUT_RGB_565 = 4;
+
+    // About 1440p, smaller frames are converted faster than the threads are woken up.
+    private static final int PARALLEL_PIXELS = 1440 * 2560;
+    private static final int THREADS = Math.max(1,
+            Math.min(8, Runtime.getRuntime().availableProcessors()));
+    private static ExecutorService sExecutor;
+
+    private FrameDecoder() {
+    }
+
+    static int getLayout(RawImage raw) {
+        if (raw.bpp == 16) {
+            return raw.red_offset == 11 && raw.red_length == 5
+                    && raw.green_offset == 5 && raw.green_length == 6
+                    && raw.blue_offset == 0 && raw.blue_length == 5
+                    ? LAYOUT_RGB_565 : LAYOUT_GENERIC;
+        }
+        if (raw.bpp != 32 || raw.red_length != 8 || raw.green_length != 8
+                || raw.blue_length != 8 || raw.green_offset != 8) {
+            return LAYOUT_GENERIC;
+        }
+        final boolean alpha = raw.alpha_length == 8 && raw.alpha_offset == 24;
+        if (!alpha && raw.alpha_length != 0) {
+            return LAYOUT_GENERIC;
+        }
+        if (raw.red_offset == 0 && raw.blue_offset == 16) {
+            return alpha ? LAYOUT_RGBA_8888 : LAYOUT_RGBX_8888;
+        }
+        if (raw.red_offset == 16 && raw.blue_offset == 0 && alpha) {
+            return LAYOUT_BGRA_8888;
+        }
+        return LAYOUT_GENERIC;
+    }
+
+    /**
+     * Returns the pixel array of the image, it must be of TYPE_INT_ARGB.
+     */
+    static int[] getPixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Writes the frame into dst, which has at least width * height elements.
+     */
+    static void decode(final RawImage raw, final int[] dst) {
+        final int layout = getLayout(raw);
+        final int height = raw.height;
+        final int threads = raw.width * height >= PARALLEL_PIXELS ? THREADS : 1;
+        if (threads == 1) {
+            decodeRows(raw, layout, dst, 0, height);
+            return;
+        }
+        final ExecutorService executor = getExecutor();
+        final List<Future<?>> tasks = new ArrayList<>(threads);
+        final int band = (height + threads - 1) / threads;
+        for (int y = band; y < height; y += band) {
+            final int from = y;
+            final int to = Math.min(height, y + band);
+            tasks.add(executor.submit(() -> decodeRows(raw, layout, dst, from, to)));
+        }
+        decodeRows(raw, layout, dst, 0, Math.min(band, height));
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                DLog.ex(e);
+            }
+        }
+    }
+
+    /**
+     * Writes the area of the frame into dst, which has at least width * height elements.
+     */
+    static void decode(RawImage raw, int[] dst, Rectangle area) {
+        final int layout = getLayout(raw);
+        final int width = raw.width;
+        final int x1 = Math.min(area.x + area.width, width);
+        final int y1 = Math.min(area.y + area.height, raw.height);
+        for (int y = Math.max(area.y, 0); y < y1; y++) {
+            final int row = y * width;
+            decodePixels(raw, layout, dst, row + Math.max(area.x, 0), row + x1);
+        }
+    }
+
+    static void decodeRows(RawImage raw, int layout, int[] dst, int fromRow, int toRow) {
+        decodePixels(raw, layout, dst, fromRow * raw.width, toRow * raw.width);
+    }
+
+    // Converts the pixels at index [from, to).
+    private static void decodePixels(RawImage raw, int layout, int[] dst, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        if (layout == LAYOUT_RGB_565) {
+            decode565(raw.data, dst, from, to);
+            return;
+        }
+        if (layout == LAYOUT_GENERIC) {
+            if (raw.bpp == 16) {
+                decodeGeneric16(raw, dst, from, to);
+            } else {
+                decodeGeneric32(raw, dst, from, to);
+            }
+            return;
+        }
+        final IntBuffer src = ByteBuffer.wrap(raw.data)
+                .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        src.position(from);
+        src.get(dst, from, to - from);
+        switch (layout) {
+            case LAYOUT_RGBA_8888:
+                for (int i = from; i < to; i++) {
+                    final int v = dst[i];
+                    dst[i] = (v & 0xFF00FF00) | ((v & 0xFF) << 16) | ((v >>> 16) & 0xFF);
+                }
+                break;
+            case LAYOUT_RGBX_8888:
+                for (int i = from; i < to; i++) {
+                    final int v = dst[i];
+                    dst[i] = 0xFF000000 | (v & 0x0000FF00) | ((v & 0xFF) << 16)
+                            | ((v >>> 16) & 0xFF);
+                }
+                break;
+            case LAYOUT_BGRA_8888:
+                // Already ARGB in little endian.
+                break;
+        }
+    }
+
+    private static void decode565(byte[] data, int[] dst, int from, int to) {
+        for (int i = from, p = from << 1; i < to; i++, p += 2) {
+            final int v = (data[p] & 0xFF) | ((data[p + 1] & 0xFF) << 8);
+            dst[i] = 0xFF000000 | ((v & 0xF800) << 8) | ((v & 0x07E0) << 5) | ((v & 0x001F) << 3);
+        }
+    }
+
+    private static void decodeGeneric16(RawImage raw, int[] dst, int from, int to) {
+        final byte[] data = raw.data;
+        final Channel r = new Channel(raw.red_offset, raw.red_length);
+        final Channel g = new Channel(raw.green_offset, raw.green_length);
+        final Channel b = new Channel(raw.blue_offset, raw.blue_length);
+        for (int i = from, p = from << 1; i < to; i++, p += 2) {
+            final int v = (data[p] & 0xFF) | ((data[p + 1] & 0xFF) << 8);
+            dst[i] = 0xFF000000 | r.get(v) << 16 | g.get(v) << 8 | b.get(v);
+        }
+    }
+
+    private static void decodeGeneric32(RawImage raw, int[] dst, int from, int to) {
+        final byte[] data = raw.data;
+        final Channel r = new Channel(raw.red_offset, raw.red_length);
+        final Channel g = new Channel(raw.green_offset, raw.green_length);
+        final Channel b = new Channel(raw.blue_offset, raw.blue_length);
+        final Channel a = raw.alpha_length == 0 ? null
+                : new Channel(raw.alpha_offset, raw.alpha_length);
+        for (int i = from, p = from << 2; i < to; i++, p += 4) {
+            final int v = (data[p] & 0xFF) | (data[p + 1] & 0xFF) << 8
+                    | (data[p + 2] & 0xFF) << 16 | (data[p + 3] & 0xFF) << 24;
+            dst[i] = (a == null ? 0xFF : a.get(v)) << 24
+                    | r.get(v) << 16 | g.get(v) << 8 | b.get(v);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(THREADS - 1, r -> {
+                final Thread t = new Thread(r, "FrameDecoder");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return sExecutor;
+    }
+
+    private static final class Channel {
+        final int offset;
+        final int mask;
+        final int shift;
+
+        Channel(int offset, int length) {
+            this.offset = offset;
+            mask = (1 << length) - 1;
+            shift = 8 - length;
+        }
+
+        int get(int value) {
+            return ((value >>> offset) & mask) << shift;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.ldt.ui;
+
+import com.android.ddmlib.RawImage;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the changed parts of consecutive framebuffer frames. The raw pixels are hashed
+ * in tiles and compared with the hashes of the previous frame, which is cheaper than
+ * decoding the frame, and much cheaper than drawing it again.
+ */
+final class FrameDiff {
+    static final int TILE = 64;
+    private static final long MUL = 0x9E3779B97F4A7C15L;
+
+    private long[] mHashes = new long[0];
+    private long[] mNewHashes = new long[0];
+    private boolean[] mDirty = new boolean[0];
+    private int mColumns;
+    private int mRows;
+    private int mWidth;
+    private int mHeight;
+    private long mFormat;
+
+    private static long formatOf(RawImage raw) {
+        long f = raw.bpp;
+        f = f * 31 + raw.red_offset * 32 + raw.red_length;
+        f = f * 31 + raw.green_offset * 32 + raw.green_length;
+        f = f * 31 + raw.blue_offset * 32 + raw.blue_length;
+        f = f * 31 + raw.alpha_offset * 32 + raw.alpha_length;
+        return f;
+    }
+
+    /**
+     * Hashes the frame and returns the number of tiles changed since the previous one.
+     * If the size or format changed, all tiles are dirty.
+     */
+    int update(RawImage raw) {
+        final int width = raw.width;
+        final int height = raw.height;
+        final int bytesPerPixel = raw.bpp >> 3;
+        final long format = formatOf(raw);
+        final boolean complete = raw.data != null && bytesPerPixel > 0
+                && raw.data.length >= (long) width * height * bytesPerPixel;
+        final boolean reset = width != mWidth || height != mHeight || format != mFormat;
+        if (reset) {
+            mWidth = width;
+            mHeight = height;
+            mFormat = format;
+            mColumns = (width + TILE - 1) / TILE;
+            mRows = (height + TILE - 1) / TILE;
+            final int tiles = mColumns * mRows;
+            mHashes = new long[tiles];
+            mNewHashes = new long[tiles];
+            mDirty = new boolean[tiles];
+        }
+        if (!complete) {
+            // The hashes are not updated, so the next frame is compared with nothing.
+            mWidth = -1;
+            Arrays.fill(mDirty, true);
+            return mDirty.length;
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(raw.data).order(ByteOrder.LITTLE_ENDIAN);
+        final byte[] data = raw.data;
+        final long[] hashes = mNewHashes;
+        final int rowBytes = width * bytesPerPixel;
+        final int tileBytes = TILE * bytesPerPixel;
+        Arrays.fill(hashes, 0);
+        for (int y = 0; y < height; y++) {
+            final int rowStart = y * rowBytes;
+            final int rowEnd = rowStart + rowBytes;
+            final int base = (y / TILE) * mColumns;
+            for (int c = 0, p = rowStart; c < mColumns; c++) {
+                final int end = Math.min(p + tileBytes, rowEnd);
+                long h = hashes[base + c];
+                for (; p + 8 <= end; p += 8) {
+                    h = (Long.rotateLeft(h, 5) ^ buf.getLong(p)) * MUL;
+                }
+                for (; p < end; p++) {
+                    h = (Long.rotateLeft(h, 5) ^ data[p]) * MUL;
+                }
+                hashes[base + c] = h;
+            }
+        }
+        int count = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            final boolean dirty = reset || hashes[i] != mHashes[i];
+            mDirty[i] = dirty;
+            if (dirty) {
+                count++;
+            }
+        }
+        mNewHashes = mHashes;
+        mHashes = hashes;
+        return count;
+    }
+
+    int getTileCount() {
+        return mDirty.length;
+    }
+
+    /**
+     * Adds the dirty areas of the last update, adjacent dirty tiles of a tile row
+     * are merged into one rectangle.
+     */
+    void getDirtyRects(List<Rectangle> out) {
+        for (int r = 0; r < mRows; r++) {
+            final int y = r * TILE;
+            final int h = Math.min(TILE, mHeight - y);
+            int c = 0;
+            while (c < mColumns) {
+                if (!mDirty[r * mColumns + c]) {
+                    c++;
+                    continue;
+                }
+                final int start = c;
+                while (c < mColumns && mDirty[r * mColumns + c]) {
+                    c++;
+                }
+                final int x = start * TILE;
+                out.add(new Rectangle(x, y, Math.min(c * TILE, mWidth) - x, h));
+            }
+        }
+    }
+
+    void reset() {
+        mWidth = 0;
+        mHeight = 0;
+    }
+}
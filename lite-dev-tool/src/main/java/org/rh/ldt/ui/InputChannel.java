@@ -0,0 +1,594 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.ldt.ui;
+
+import com.android.ddmlib.AdbHelper;
+import com.android.ddmlib.AdbHelperEx;
+import com.android.ddmlib.Device;
+
+import org.rh.ldt.DLog;
+import org.rh.smaliex.AdbUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Sends input to a device through one shell which is kept open. Touch events are
+ * written to the touch screen with sendevent, so a gesture is replayed with the timing
+ * it was made. The coordinates of the screenshot are mapped to the touch screen by the
+ * rotation of the display. If the touch screen cannot be written or the rotation is
+ * unknown, a gesture is sent as one input tap or swipe command when it ends.
+ */
+final class InputChannel {
+    private static final int EV_SYN = 0;
+    private static final int EV_KEY = 1;
+    private static final int EV_ABS = 3;
+    private static final int SYN_REPORT = 0;
+    private static final int SYN_MT_REPORT = 2;
+    private static final int BTN_TOUCH = 0x14a;
+    private static final int ABS_MT_SLOT = 0x2f;
+    private static final int ABS_MT_POSITION_X = 0x35;
+    private static final int ABS_MT_POSITION_Y = 0x36;
+    private static final int ABS_MT_TRACKING_ID = 0x39;
+
+    // Below the line limit of the terminal of the shell.
+    private static final int MAX_LINE = 2000;
+    // The display rotation is read again in the background after this time.
+    private static final long ROTATION_CHECK_MS = 2000;
+
+    private static final int DOWN = 0;
+    private static final int MOVE = 1;
+    private static final int UP = 2;
+    private static final int COMMAND = 3;
+
+    private static final class Event {
+        final int action;
+        final int x;
+        final int y;
+        final long time;
+        final String command;
+
+        Event(int action, int x, int y, long time, String command) {
+            this.action = action;
+            this.x = x;
+            this.y = y;
+            this.time = time;
+            this.command = command;
+        }
+    }
+
+    /**
+     * The touch screen found by getevent -p.
+     */
+    static final class TouchDevice {
+        String path;
+        int maxX;
+        int maxY;
+        boolean hasSlot;
+        boolean hasTrackingId;
+        boolean hasBtnTouch;
+
+        boolean isValid() {
+            return path != null && maxX > 0 && maxY > 0;
+        }
+
+        @Override
+        public String toString() {
+            return path + " max=" + maxX + "x" + maxY + (hasSlot ? " slot" : "")
+                    + (hasTrackingId ? " id" : "");
+        }
+    }
+
+    private final Device mDevice;
+    private final ArrayDeque<Event> mQueue = new ArrayDeque<>();
+    private final StringBuilder mBatch = new StringBuilder(256);
+    private Thread mWriter;
+    private volatile boolean mStopped;
+    private volatile SocketChannel mChannel;
+    private volatile boolean mDenied;
+    private TouchDevice mTouch;
+    private int mTrackingId;
+    // Screen size of the touch coordinates.
+    private volatile int mWidth;
+    private volatile int mHeight;
+    // Surface orientation of the display, -1 if unknown.
+    private volatile int mRotation = -1;
+    private volatile long mRotationTime;
+    private volatile boolean mRotationReading;
+    private int mGestureRotation;
+    private int mRotationWidth;
+    private int mRotationHeight;
+    // The current gesture, its path is chosen at down and kept until up.
+    private boolean mGestureByTouch;
+    private int mDownX;
+    private int mDownY;
+    private long mDownTime;
+
+    InputChannel(Device device) {
+        mDevice = device;
+    }
+
+    void setScreenSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    void touchDown(int x, int y) {
+        post(new Event(DOWN, x, y, System.currentTimeMillis(), null));
+    }
+
+    void touchMove(int x, int y) {
+        post(new Event(MOVE, x, y, System.currentTimeMillis(), null));
+    }
+
+    void touchUp(int x, int y) {
+        post(new Event(UP, x, y, System.currentTimeMillis(), null));
+    }
+
+    /**
+     * Runs the shell command in the shell of the channel.
+     */
+    void command(String cmd) {
+        post(new Event(COMMAND, 0, 0, System.currentTimeMillis(), cmd));
+    }
+
+    private void post(Event e) {
+        synchronized (mQueue) {
+            if (mStopped) {
+                return;
+            }
+            mQueue.add(e);
+            if (mWriter == null) {
+                mWriter = new Thread(this::write, "InputChannel-" + mDevice.getSerialNumber());
+                mWriter.setDaemon(true);
+                mWriter.start();
+            }
+            mQueue.notifyAll();
+        }
+    }
+
+    void stop() {
+        mStopped = true;
+        synchronized (mQueue) {
+            mQueue.notifyAll();
+        }
+        close();
+    }
+
+    private void close() {
+        final SocketChannel channel = mChannel;
+        mChannel = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    static TouchDevice findTouchDevice(String geteventOutput) {
+        TouchDevice current = null;
+        TouchDevice found = null;
+        boolean inKey = false;
+        for (String line : geteventOutput.split("\r?\n")) {
+            final String s = line.trim();
+            if (s.startsWith("add device")) {
+                if (current != null && current.isValid() && found == null) {
+                    found = current;
+                }
+                current = new TouchDevice();
+                final int p = s.indexOf(':');
+                current.path = p > 0 ? s.substring(p + 1).trim() : null;
+                inKey = false;
+                continue;
+            }
+            if (current == null) {
+                continue;
+            }
+            String codes = s;
+            final int typeEnd = s.indexOf("):");
+            if (typeEnd > 0 && s.indexOf('(') < typeEnd) {
+                inKey = s.startsWith("KEY");
+                codes = s.substring(typeEnd + 2).trim();
+            } else if (s.startsWith("input props") || s.startsWith("name:")) {
+                inKey = false;
+                continue;
+            }
+            if (inKey) {
+                for (String code : codes.split("\\s+")) {
+                    if (code.equals("014a")) {
+                        current.hasBtnTouch = true;
+                    }
+                }
+                continue;
+            }
+            // "0035  : value 0, min 0, max 1079, fuzz 0, flat 0, resolution 0"
+            final int colon = codes.indexOf(':');
+            if (colon <= 0 || !codes.contains("max ")) {
+                continue;
+            }
+            final int code;
+            try {
+                code = Integer.parseInt(codes.substring(0, colon).trim(), 16);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            switch (code) {
+                case ABS_MT_SLOT:
+                    current.hasSlot = true;
+                    break;
+                case ABS_MT_TRACKING_ID:
+                    current.hasTrackingId = true;
+                    break;
+                case ABS_MT_POSITION_X:
+                    current.maxX = parseMax(codes);
+                    break;
+                case ABS_MT_POSITION_Y:
+                    current.maxY = parseMax(codes);
+                    break;
+            }
+        }
+        if (found == null && current != null && current.isValid()) {
+            found = current;
+        }
+        return found;
+    }
+
+    private static int parseMax(String s) {
+        final int p = s.indexOf("max ") + 4;
+        int end = p;
+        while (end < s.length() && (Character.isDigit(s.charAt(end)) || s.charAt(end) == '-')) {
+            end++;
+        }
+        try {
+            return Integer.parseInt(s.substring(p, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void write() {
+        final TouchDevice touch = findTouchDevice(AdbUtil.shell(mDevice, "getevent -p"));
+        DLog.i("Touch device of " + mDevice.getName() + ": " + touch);
+        mTouch = touch;
+        if (touch != null) {
+            readRotation();
+        }
+        long gestureTime = 0;
+        long sendTime = 0;
+        while (true) {
+            final Event e;
+            synchronized (mQueue) {
+                while (mQueue.isEmpty() && !mStopped) {
+                    try {
+                        mQueue.wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                if (mStopped) {
+                    return;
+                }
+                e = mQueue.poll();
+            }
+            if (e.action == DOWN) {
+                gestureTime = e.time;
+                sendTime = System.currentTimeMillis();
+            } else if (e.action == MOVE || e.action == UP) {
+                // Keep the intervals of the gesture if the events came in a burst.
+                final long delay = sendTime + (e.time - gestureTime) - System.currentTimeMillis();
+                if (delay > 0 && mBatch.length() > 0) {
+                    flush();
+                }
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+            if (e.action == DOWN) {
+                mDownX = e.x;
+                mDownY = e.y;
+                mDownTime = e.time;
+                mGestureByTouch = mTouch != null && !mDenied && updateRotation();
+            }
+            if (e.action == COMMAND) {
+                append(e.command);
+            } else if (mGestureByTouch) {
+                appendTouch(e);
+                if (e.action == UP && mDenied) {
+                    // The sendevent of this gesture may have failed.
+                    appendInputCommand(e);
+                }
+            } else {
+                appendInputCommand(e);
+            }
+            boolean more;
+            synchronized (mQueue) {
+                more = !mQueue.isEmpty();
+            }
+            if (!more) {
+                flush();
+            }
+        }
+    }
+
+    static int parseSurfaceOrientation(String dumpsysInput, String touchPath) {
+        int rotation = -1;
+        boolean inTouch = touchPath == null;
+        for (String line : dumpsysInput.split("\r?\n")) {
+            final String s = line.trim();
+            if (s.startsWith("Path:")) {
+                inTouch = touchPath == null || s.substring(5).trim().equals(touchPath);
+                continue;
+            }
+            if (!s.startsWith("SurfaceOrientation:")
+                    && !s.startsWith("InputDeviceOrientation:")) {
+                continue;
+            }
+            String v = s.substring(s.indexOf(':') + 1).trim();
+            if (v.startsWith("ROTATION_")) {
+                v = v.substring(9);
+            }
+            final int r;
+            switch (v) {
+                case "0":
+                    r = 0;
+                    break;
+                case "1":
+                case "90":
+                    r = 1;
+                    break;
+                case "2":
+                case "180":
+                    r = 2;
+                    break;
+                case "3":
+                case "270":
+                    r = 3;
+                    break;
+                default:
+                    continue;
+            }
+            if (inTouch) {
+                return r;
+            }
+            if (rotation < 0) {
+                rotation = r;
+            }
+        }
+        return rotation;
+    }
+
+    private void readRotation() {
+        mRotation = parseSurfaceOrientation(AdbUtil.shell(mDevice, "dumpsys input"), mTouch.path);
+        mRotationTime = System.currentTimeMillis();
+    }
+
+    // Reads the rotation on another thread, so a gesture does not wait for dumpsys.
+    private void requestRotation() {
+        if (mRotationReading) {
+            return;
+        }
+        mRotationReading = true;
+        final Thread t = new Thread(() -> {
+            try {
+                readRotation();
+            } finally {
+                mRotationReading = false;
+            }
+        }, "InputChannel-rotation-" + mDevice.getSerialNumber());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Returns true if the screenshot coordinates can be mapped to the touch screen by
+    // the last read rotation, which is kept for the gesture.
+    private boolean updateRotation() {
+        final int w = mWidth;
+        final int h = mHeight;
+        if (w <= 0 || h <= 0) {
+            return false;
+        }
+        if (w != mRotationWidth || h != mRotationHeight
+                || System.currentTimeMillis() - mRotationTime > ROTATION_CHECK_MS) {
+            mRotationWidth = w;
+            mRotationHeight = h;
+            requestRotation();
+        }
+        final int rotation = mRotation;
+        mGestureRotation = rotation;
+        if (rotation < 0) {
+            return false;
+        }
+        // The rotated touch screen should have the same orientation as the screenshot.
+        final boolean swap = (rotation & 1) != 0;
+        final int tw = swap ? mTouch.maxY : mTouch.maxX;
+        final int th = swap ? mTouch.maxX : mTouch.maxY;
+        return w == h || tw == th || (w > h) == (tw > th);
+    }
+
+    private void appendTouch(Event e) {
+        final TouchDevice t = mTouch;
+        final int w = mWidth;
+        final int h = mHeight;
+        // Map to the natural orientation of the display as the touch screen.
+        final long px;
+        final long py;
+        final long pw;
+        final long ph;
+        switch (mGestureRotation) {
+            case 1:
+                px = h - 1 - e.y;
+                py = e.x;
+                pw = h;
+                ph = w;
+                break;
+            case 2:
+                px = w - 1 - e.x;
+                py = h - 1 - e.y;
+                pw = w;
+                ph = h;
+                break;
+            case 3:
+                px = e.y;
+                py = w - 1 - e.x;
+                pw = h;
+                ph = w;
+                break;
+            default:
+                px = e.x;
+                py = e.y;
+                pw = w;
+                ph = h;
+                break;
+        }
+        final int x = (int) (px * (t.maxX + 1) / pw);
+        final int y = (int) (py * (t.maxY + 1) / ph);
+        switch (e.action) {
+            case DOWN:
+                if (t.hasSlot) {
+                    sendEvent(EV_ABS, ABS_MT_SLOT, 0);
+                }
+                if (t.hasTrackingId) {
+                    mTrackingId = (mTrackingId + 1) & 0xffff;
+                    sendEvent(EV_ABS, ABS_MT_TRACKING_ID, mTrackingId);
+                }
+                if (t.hasBtnTouch) {
+                    sendEvent(EV_KEY, BTN_TOUCH, 1);
+                }
+                appendPosition(t, x, y);
+                break;
+            case MOVE:
+                appendPosition(t, x, y);
+                break;
+            case UP:
+                appendPosition(t, x, y);
+                if (t.hasTrackingId) {
+                    sendEvent(EV_ABS, ABS_MT_TRACKING_ID, -1);
+                }
+                if (t.hasBtnTouch) {
+                    sendEvent(EV_KEY, BTN_TOUCH, 0);
+                }
+                if (!t.hasTrackingId) {
+                    sendEvent(EV_SYN, SYN_MT_REPORT, 0);
+                }
+                sendEvent(EV_SYN, SYN_REPORT, 0);
+                break;
+        }
+    }
+
+    private void appendPosition(TouchDevice t, int x, int y) {
+        sendEvent(EV_ABS, ABS_MT_POSITION_X, x);
+        sendEvent(EV_ABS, ABS_MT_POSITION_Y, y);
+        if (!t.hasTrackingId) {
+            // Protocol A reports every contact with SYN_MT_REPORT.
+            sendEvent(EV_SYN, SYN_MT_REPORT, 0);
+        }
+        sendEvent(EV_SYN, SYN_REPORT, 0);
+    }
+
+    private void sendEvent(int type, int code, int value) {
+        append("sendevent " + mTouch.path + " " + type + " " + code + " " + value);
+    }
+
+    private void appendInputCommand(Event e) {
+        if (e.action != UP) {
+            return;
+        }
+        if (Math.abs(mDownX - e.x) < 5 && Math.abs(mDownY - e.y) < 5) {
+            append("input tap " + e.x + " " + e.y);
+        } else {
+            append("input swipe " + mDownX + " " + mDownY + " " + e.x + " " + e.y
+                    + " " + Math.max(1, e.time - mDownTime));
+        }
+    }
+
+    private void append(String cmd) {
+        if (mBatch.length() + cmd.length() > MAX_LINE) {
+            flush();
+        }
+        if (mBatch.length() > 0) {
+            mBatch.append(';');
+        }
+        mBatch.append(cmd);
+    }
+
+    private void flush() {
+        if (mBatch.length() == 0) {
+            return;
+        }
+        mBatch.append('\n');
+        final byte[] b = mBatch.toString().getBytes(StandardCharsets.UTF_8);
+        mBatch.setLength(0);
+        for (int retry = 0; retry < 2 && !mStopped; retry++) {
+            try {
+                SocketChannel channel = mChannel;
+                if (channel == null) {
+                    channel = openShell();
+                }
+                final ByteBuffer buf = ByteBuffer.wrap(b);
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                return;
+            } catch (IOException | AdbHelper.TimeoutException
+                    | AdbHelper.AdbCommandRejectedException ex) {
+                DLog.i("Input channel of " + mDevice.getName() + ": " + ex);
+                close();
+            }
+        }
+    }
+
+    private SocketChannel openShell() throws IOException, AdbHelper.TimeoutException,
+            AdbHelper.AdbCommandRejectedException {
+        final SocketChannel channel = AdbHelperEx.openService(mDevice, "shell:");
+        mChannel = channel;
+        final Thread reader = new Thread(() -> drain(channel),
+                "InputChannel-reader-" + mDevice.getSerialNumber());
+        reader.setDaemon(true);
+        reader.start();
+        return channel;
+    }
+
+    // Reads the shell output so the shell is not blocked, and checks if sendevent works.
+    private void drain(SocketChannel channel) {
+        final byte[] buf = new byte[4096];
+        try (InputStream in = Channels.newInputStream(channel)) {
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                final String out = new String(buf, 0, len, StandardCharsets.UTF_8);
+                if (!mDenied && (out.contains("sendevent") || out.contains("/dev/input/"))
+                        && (out.contains("denied") || out.contains("not found")
+                        || out.contains("No such"))) {
+                    mDenied = true;
+                    DLog.i("sendevent is not usable on " + mDevice.getName()
+                            + ", use input commands: " + out.trim());
+                }
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
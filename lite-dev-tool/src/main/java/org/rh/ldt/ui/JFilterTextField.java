@@ -22,6 +22,7 @@ import javax.swing.KeyStroke;
 import javax.swing.event.DocumentEvent;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
+import java.util.Locale;
 import java.util.regex.Pattern;
 
 public class JFilterTextField extends JTextField implements ContextMenuUtil.AutoContextMenu {
@@ -110,7 +111,7 @@ public class JFilterTextField extends JTextField implements ContextMenuUtil.Auto
                 mRegExp = null;
             }
         }
-        mCurrentLowerCaseStr = text.toLowerCase();
+        mCurrentLowerCaseStr = text.toLowerCase(Locale.ROOT);
         mCurrentSepBySpace = mCurrentLowerCaseStr.split(" ");
 
         int len = text.length();
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rh.ldt.ui;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fixed capacity store of log lines. The text is kept as UTF-8 in a byte ring and
+ * each line has a record of its position, the parsed time, level, tag, pid and tid,
+ * and the id of its stream. When either the line or the byte capacity is reached, the
+ * oldest lines are dropped, so a log session of any length uses constant memory.
+ * Lines are addressed by sequence number, which keeps increasing after the oldest
+ * lines are dropped.
+ */
+final class LogBuffer {
+    private final byte[] mBytes;
+    private final int mMaxLineBytes;
+    private final int mLineMask;
+    // Absolute byte position of each line, the ring offset is position % mBytes.length.
+    private final long[] mStart;
+    private final int[] mLength;
+    private final byte[] mLevel;
+    // Tag range relative to the line start.
+    private final short[] mTagStart;
+    private final short[] mTagLength;
+    private final int[] mPid;
+    private final int[] mTid;
+    private final long[] mTime;
+    private final int[] mSource;
+    private final LogParser mParser = new LogParser();
+    private final LogParser.Record mRecord = new LogParser.Record();
+    private long mWritePos;
+    private long mFirstSeq;
+    private long mNextSeq;
+    private int mMaxLineChars;
+
+    /**
+     * @param maxLines rounded up to a power of two
+     */
+    LogBuffer(int maxLines, int maxBytes) {
+        final int lines = Integer.highestOneBit(Math.max(maxLines, 16) * 2 - 1);
+        mBytes = new byte[maxBytes];
+        mMaxLineBytes = Math.min(maxBytes / 4, Short.MAX_VALUE);
+        mLineMask = lines - 1;
+        mStart = new long[lines];
+        mLength = new int[lines];
+        mLevel = new byte[lines];
+        mTagStart = new short[lines];
+        mTagLength = new short[lines];
+        mPid = new int[lines];
+        mTid = new int[lines];
+        mTime = new long[lines];
+        mSource = new int[lines];
+    }
+
+    /**
+     * Appends a line of "threadtime" format, or any text without the fields.
+     */
+    long append(String line) {
+        final byte[] b = line.getBytes(StandardCharsets.UTF_8);
+        mParser.parse(b, 0, b.length, mRecord);
+        return append(mRecord);
+    }
+
+    long append(LogParser.Record r) {
+        return append(r.data, r.start, r.length(), r.level, r.tagStart - r.start,
+                r.tagEnd - r.tagStart, r.pid, r.tid, r.time, 0);
+    }
+
+    long append(LogParser.Chunk c, int i) {
+        return append(c.data, c.start[i], c.length[i], c.level[i], c.tagStart[i],
+                c.tagLength[i], c.pid[i], c.tid[i], c.time[i], c.source);
+    }
+
+    /**
+     * Returns the sequence number of the appended line.
+     */
+    long append(byte[] a, int offset, int length, int level, int tagStart, int tagLength,
+                int pid, int tid, long time, int source) {
+        if (length > mMaxLineBytes) {
+            length = mMaxLineBytes;
+        }
+        final int capacity = mBytes.length;
+        long start = mWritePos;
+        final int ringPos = (int) (start % capacity);
+        if (ringPos + length > capacity) {
+            // Keep a line contiguous, skip the rest of the ring.
+            start += capacity - ringPos;
+        }
+        mWritePos = start + length;
+        while (mFirstSeq < mNextSeq && (mNextSeq - mFirstSeq > mLineMask
+                || mStart[(int) mFirstSeq & mLineMask] < mWritePos - capacity)) {
+            mFirstSeq++;
+        }
+        System.arraycopy(a, offset, mBytes, (int) (start % capacity), length);
+        final int idx = (int) mNextSeq & mLineMask;
+        mStart[idx] = start;
+        mLength[idx] = length;
+        mLevel[idx] = (byte) level;
+        mTagStart[idx] = (short) Math.min(tagStart, length);
+        mTagLength[idx] = (short) Math.max(0, Math.min(tagLength, length - tagStart));
+        mPid[idx] = pid;
+        mTid[idx] = tid;
+        mTime[idx] = time;
+        mSource[idx] = source;
+        if (length > mMaxLineChars) {
+            mMaxLineChars = length;
+        }
+        return mNextSeq++;
+    }
+
+    long getFirstSeq() {
+        return mFirstSeq;
+    }
+
+    long getNextSeq() {
+        return mNextSeq;
+    }
+
+    int size() {
+        return (int) (mNextSeq - mFirstSeq);
+    }
+
+    boolean contains(long seq) {
+        return seq >= mFirstSeq && seq < mNextSeq;
+    }
+
+    /**
+     * Points the record to the line in the buffer, the data is valid until the next append.
+     */
+    void getRecord(long seq, LogParser.Record r) {
+        final int idx = (int) seq & mLineMask;
+        final int start = (int) (mStart[idx] % mBytes.length);
+        final int end = start + mLength[idx];
+        r.data = mBytes;
+        r.start = start;
+        r.end = end;
+        r.level = mLevel[idx];
+        r.tagStart = start + mTagStart[idx];
+        r.tagEnd = r.tagStart + mTagLength[idx];
+        r.pid = mPid[idx];
+        r.tid = mTid[idx];
+        r.time = mTime[idx];
+        int p = r.tagEnd;
+        while (p < end && mBytes[p] == ' ') {
+            p++;
+        }
+        if (p + 1 < end && mBytes[p] == ':' && mBytes[p + 1] == ' ') {
+            p += 2;
+        } else if (r.tagEnd == r.tagStart) {
+            p = start;
+        }
+        r.msgStart = Math.min(p, end);
+    }
+
+    String getText(long seq) {
+        final int idx = (int) seq & mLineMask;
+        return new String(mBytes, (int) (mStart[idx] % mBytes.length), mLength[idx],
+                StandardCharsets.UTF_8);
+    }
+
+    String getTag(long seq) {
+        final int idx = (int) seq & mLineMask;
+        return new String(mBytes, (int) (mStart[idx] % mBytes.length) + mTagStart[idx],
+                mTagLength[idx], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the priority of Log.LogLevel, or LogParser.LEVEL_UNKNOWN.
+     */
+    int getLevel(long seq) {
+        return mLevel[(int) seq & mLineMask];
+    }
+
+    int getPid(long seq) {
+        return mPid[(int) seq & mLineMask];
+    }
+
+    int getTid(long seq) {
+        return mTid[(int) seq & mLineMask];
+    }
+
+    long getTime(long seq) {
+        return mTime[(int) seq & mLineMask];
+    }
+
+    int getSource(long seq) {
+        return mSource[(int) seq & mLineMask];
+    }
+
+    /**
+     * Returns the length in bytes of the longest line ever added, for the view width.
+     */
+    int getMaxLineLength() {
+        return mMaxLineChars;
+    }
+
+    void clear() {
+        mFirstSeq = mNextSeq;
+        mMaxLineChars = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "LogBuffer lines=" + size() + "/" + (mLineMask + 1) + " bytes="
+                + (size() == 0 ? 0 : mWritePos - mStart[(int) mFirstSeq & mLineMask])
+                + "/" + mBytes.length + " seq=" + mFirstSeq + ".." + mNextSeq;
+    }
+}
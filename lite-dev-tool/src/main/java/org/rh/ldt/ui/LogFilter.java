@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.ldt.ui;
+
+import org.rh.ldt.util.IntIntMap;
+import org.rh.ldt.util.StringUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Log filter compiled from the text of the include and exclude fields.
+ * The text is a list of terms separated by spaces, a term can be quoted to contain
+ * spaces and it is an exclude term if it starts with '-'. The terms "tag:", "pid:",
+ * "level:" and "regex:" match a part of the tag, the pid, the minimum level and a regular
+ * expression of the line, the other terms match a part of the line ignoring case.
+ * A line is accepted if it matches no exclude term, and at least one include term of
+ * each kind which has include terms. All text terms are searched in one pass over the
+ * UTF-8 bytes, so the cost does not grow with the number of terms.
+ * It is not thread safe.
+ */
+final class LogFilter implements LogReceiver.Filter {
+    private static final int PID_INCLUDE = 1;
+    private static final int PID_EXCLUDE = 2;
+
+    private final StringUtil.AhoCorasick mText;
+    private final boolean[] mTextExclude;
+    private final boolean mHasTextInclude;
+    private final boolean mHasTextExclude;
+    private final StringUtil.AhoCorasick mTag;
+    private final boolean[] mTagExclude;
+    private final boolean mHasTagInclude;
+    private final boolean mHasTagExclude;
+    private final IntIntMap mPids;
+    private final boolean mHasPidInclude;
+    private final int mMinLevel;
+    private final int mExcludeLevels;
+    private final Pattern mIncludeRegex;
+    private final Pattern mExcludeRegex;
+    private final boolean mEmpty;
+    private boolean mIncluded;
+    private boolean mExcluded;
+
+    private final StringUtil.AhoCorasick.MatchHandler mTextHandler = this::onTextMatch;
+    private final StringUtil.AhoCorasick.MatchHandler mTagHandler = this::onTagMatch;
+
+    private static class Terms {
+        final ArrayList<String> text = new ArrayList<>();
+        final ArrayList<Boolean> textExclude = new ArrayList<>();
+        final ArrayList<String> tag = new ArrayList<>();
+        final ArrayList<Boolean> tagExclude = new ArrayList<>();
+        final IntIntMap pids = new IntIntMap();
+        final StringBuilder includeRegex = new StringBuilder();
+        final StringBuilder excludeRegex = new StringBuilder();
+        boolean hasPidInclude;
+        int minLevel;
+        int excludeLevels;
+
+        void add(String term, boolean exclude) {
+            final int colon = term.indexOf(':');
+            final String key = colon > 0 ? term.substring(0, colon).toLowerCase(Locale.ROOT) : "";
+            final String value = term.substring(colon + 1);
+            // A qualifier without value is ignored, other terms ending with ':' are text.
+            switch (key) {
+                case "tag":
+                    if (value.isEmpty()) {
+                        return;
+                    }
+                    tag.add(value);
+                    tagExclude.add(exclude);
+                    return;
+                case "pid":
+                    try {
+                        final int pid = Integer.parseInt(value);
+                        if (exclude) {
+                            pids.put(pid, PID_EXCLUDE);
+                        } else {
+                            hasPidInclude = true;
+                            if (pids.get(pid, 0) != PID_EXCLUDE) {
+                                pids.put(pid, PID_INCLUDE);
+                            }
+                        }
+                    } catch (NumberFormatException ignored) {
+                    }
+                    return;
+                case "level":
+                    if (value.isEmpty()) {
+                        return;
+                    }
+                    final int level = LogParser.levelOf((byte) Character.toUpperCase(value.charAt(0)));
+                    if (level == LogParser.LEVEL_UNKNOWN) {
+                        return;
+                    }
+                    if (exclude) {
+                        excludeLevels |= 1 << level;
+                    } else if (minLevel == 0 || level < minLevel) {
+                        minLevel = level;
+                    }
+                    return;
+                case "regex":
+                    addRegex(value, exclude);
+                    return;
+            }
+            text.add(term);
+            textExclude.add(exclude);
+        }
+
+        void addRegex(String regex, boolean exclude) {
+            if (regex.isEmpty()) {
+                return;
+            }
+            try {
+                Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                return;
+            }
+            final StringBuilder sb = exclude ? excludeRegex : includeRegex;
+            sb.append(sb.length() > 0 ? "|(?:" : "(?:").append(regex).append(')');
+        }
+
+        void parse(String str, boolean exclude) {
+            final int len = str.length();
+            int i = 0;
+            while (i < len) {
+                while (i < len && str.charAt(i) == ' ') {
+                    i++;
+                }
+                boolean ex = exclude;
+                if (i + 1 < len && str.charAt(i) == '-' && str.charAt(i + 1) != ' ') {
+                    ex = true;
+                    i++;
+                }
+                final StringBuilder term = new StringBuilder();
+                boolean quoted = false;
+                for (; i < len && (quoted || str.charAt(i) != ' '); i++) {
+                    final char c = str.charAt(i);
+                    if (c == '"') {
+                        quoted = !quoted;
+                    } else {
+                        term.append(c);
+                    }
+                }
+                if (term.length() > 0) {
+                    add(term.toString(), ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * A field in regular expression mode is one regex term.
+     */
+    static LogFilter compile(String include, boolean includeRegex,
+                             String exclude, boolean excludeRegex) {
+        final Terms terms = new Terms();
+        if (includeRegex) {
+            terms.addRegex(include, false);
+        } else {
+            terms.parse(include, false);
+        }
+        if (excludeRegex) {
+            terms.addRegex(exclude, true);
+        } else {
+            terms.parse(exclude, true);
+        }
+        return new LogFilter(terms);
+    }
+
+    private LogFilter(Terms t) {
+        mTextExclude = toArray(t.textExclude);
+        mText = t.text.isEmpty() ? null : StringUtil.AhoCorasick.forUtf8(
+                t.text.toArray(new String[t.text.size()]), true);
+        mTagExclude = toArray(t.tagExclude);
+        mTag = t.tag.isEmpty() ? null : StringUtil.AhoCorasick.forUtf8(
+                t.tag.toArray(new String[t.tag.size()]), true);
+        mHasTextExclude = t.textExclude.contains(Boolean.TRUE);
+        mHasTagInclude = t.tagExclude.contains(Boolean.FALSE);
+        mHasTagExclude = t.tagExclude.contains(Boolean.TRUE);
+        mIncludeRegex = t.includeRegex.length() > 0 ? Pattern.compile(t.includeRegex.toString()) : null;
+        mExcludeRegex = t.excludeRegex.length() > 0 ? Pattern.compile(t.excludeRegex.toString()) : null;
+        mHasTextInclude = t.textExclude.contains(Boolean.FALSE) || mIncludeRegex != null;
+        mPids = t.pids.size() > 0 ? t.pids : null;
+        mHasPidInclude = t.hasPidInclude;
+        mMinLevel = t.minLevel;
+        mExcludeLevels = t.excludeLevels;
+        mEmpty = mText == null && mTag == null && mPids == null && mMinLevel == 0
+                && mExcludeLevels == 0 && mIncludeRegex == null && mExcludeRegex == null;
+    }
+
+    private boolean onTextMatch(int idx, int start, int end) {
+        if (mTextExclude[idx]) {
+            mExcluded = true;
+            return false;
+        }
+        mIncluded = true;
+        return mHasTextExclude;
+    }
+
+    private boolean onTagMatch(int idx, int start, int end) {
+        if (mTagExclude[idx]) {
+            mExcluded = true;
+            return false;
+        }
+        mIncluded = true;
+        return mHasTagExclude;
+    }
+
+    private static boolean[] toArray(ArrayList<Boolean> list) {
+        final boolean[] a = new boolean[list.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = list.get(i);
+        }
+        return a;
+    }
+
+    boolean isEmpty() {
+        return mEmpty;
+    }
+
+    @Override
+    public boolean accept(LogParser.Record r) {
+        if (mEmpty) {
+            return true;
+        }
+        if (r.level < mMinLevel && r.level != LogParser.LEVEL_UNKNOWN
+                || (mExcludeLevels & (1 << r.level)) != 0) {
+            return false;
+        }
+        if (mPids != null) {
+            final int v = mPids.get(r.pid, 0);
+            if (v == PID_EXCLUDE || (mHasPidInclude && v != PID_INCLUDE)) {
+                return false;
+            }
+        }
+        if (mTag != null) {
+            mIncluded = mExcluded = false;
+            mTag.search(r.data, r.tagStart, r.tagEnd, mTagHandler);
+            if (mExcluded || (mHasTagInclude && !mIncluded)) {
+                return false;
+            }
+        }
+        boolean included = !mHasTextInclude;
+        if (mText != null) {
+            mIncluded = mExcluded = false;
+            mText.search(r.data, r.start, r.end, mTextHandler);
+            if (mExcluded) {
+                return false;
+            }
+            included |= mIncluded;
+        }
+        if (mExcludeRegex != null || (mIncludeRegex != null && !included)) {
+            final String line = new String(r.data, r.start, r.length(), StandardCharsets.UTF_8);
+            if (mExcludeRegex != null && mExcludeRegex.matcher(line).find()) {
+                return false;
+            }
+            if (!included && mIncludeRegex != null) {
+                included = mIncludeRegex.matcher(line).find();
+            }
+        }
+        return included;
+    }
+}
@@ -16,11 +16,14 @@
 
 package org.rh.ldt.ui;
 
-import com.android.ddmlib.CommandReceiverTask;
 import com.android.ddmlib.Device;
 import com.android.ddmlib.Log;
+import org.rh.ldt.DLog;
+import org.rh.ldt.Env;
+import org.rh.ldt.util.StringUtil;
 
 import javax.swing.AbstractAction;
+import javax.swing.AbstractListModel;
 import javax.swing.Action;
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -28,55 +31,80 @@ import javax.swing.BoxLayout;
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JComponent;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JPopupMenu;
 import javax.swing.JRadioButton;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
+import javax.swing.ListCellRenderer;
 import javax.swing.SwingUtilities;
 import javax.swing.border.Border;
 import javax.swing.border.EmptyBorder;
-import javax.swing.text.BadLocationException;
-import javax.swing.text.DefaultHighlighter;
-import javax.swing.text.Highlighter;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.HeadlessException;
 import java.awt.Insets;
-import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class LogFrame extends JFrame {
 
-    private final LoggerPane mLogPane = new LoggerPane();
+    private final static int LOG_MAX_LINES = 256 * 1024;
+    private final static int LOG_MAX_BYTES = 32 * 1024 * 1024;
+    private final LogListView mLogView = new LogListView(new LogBuffer(LOG_MAX_LINES, LOG_MAX_BYTES));
     private JFilterTextField mIncludeTF;
     private JFilterTextField mExcludeTF;
     private JFilterTextField mHighlightTF;
-    private UpdatePaneTaskUtil mTextUpdater;
+    private LogDispatcher mDispatcher;
+    private final JLabel mRateStatus = new JLabel();
     private int mFilterLen = 2;
     private JCheckBox mAutoScrollCB;
     private Timer mControlTimer = UiUtil.getTaskTimer();
-    private Highlighter.HighlightPainter mHlPainter =
-            new DefaultHighlighter.DefaultHighlightPainter(Color.YELLOW);
-    private boolean mPause;
-    private boolean mRestart;
-    private boolean mDropStartingLog;
-    private long mLastStartTime;
+    private volatile boolean mPause;
     private LogAttr.LogSource mLogSource = LogAttr.LogSource.defaults;
     private Log.LogLevel mLevel = Log.LogLevel.VERBOSE;
-    private CommandReceiverTask mLogTask;
+    private List<Device> mDevices = Collections.emptyList();
+    private final ArrayList<LogIngestService.Source> mSources = new ArrayList<>();
+    private boolean mBinaryMode;
+    private JCheckBox mBinaryCB;
+    private LogFilter mFilter = LogFilter.compile("", false, "", false);
+    // The spool of an offline frame.
+    private LogSpool mSpool;
+    private volatile boolean mClosed;
+    private String mTimeRange = "";
 
     LogFrame(String title) throws HeadlessException {
         setTitle(title);
@@ -86,138 +114,369 @@ public class LogFrame extends JFrame {
         controlPanel.add(createControlFirstRow());
         controlPanel.add(createControlSecondRow());
         baseP.add(controlPanel, BorderLayout.NORTH);
-        baseP.add(new JScrollPane(mLogPane), BorderLayout.CENTER);
+        baseP.add(new JScrollPane(mLogView), BorderLayout.CENTER);
         setContentPane(baseP);
         setSize(800, 600);
         setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
-                if (mLogTask != null) {
-                    mLogTask.stop();
+                mClosed = true;
+                unsubscribe();
+                if (mDispatcher != null) {
+                    mDispatcher.stop();
                 }
             }
         });
     }
 
-    private void startLogTask() {
-        new Thread(() -> {
-            mDropStartingLog = true;
-            mLastStartTime = System.currentTimeMillis();
-            mLogTask.run(); // Loop to read log.
-            if (mRestart) {
-                mRestart = false;
-                mLogTask.setCancelled(false);
-                startLogTask();
-            }
-        }).start();
-    }
+    private final LogReceiver.Sink mLogSink = new LogReceiver.Sink() {
+        @Override
+        public void onChunk(LogParser.Chunk chunk) {
+            if (!mPause) {
+                mDispatcher.post(chunk);
+            }
+        }
+
+        @Override
+        public void onStop(String reason) {
+        }
+    };
 
     public void start(Device device, LogAttr.LogSource logSrc) {
-        final CommandReceiverTask.Logger t = new CommandReceiverTask.Logger() {
-            @Override
-            public void onLog(String[] logs) {
-                for (String log : logs) {
-                    if (mPause) {
-                        continue;
-                    }
-                    if (log != null && log.length() > 1 && okToShow(log)) {
-                        mTextUpdater.appendLogLine(log + "\n");
-                    }
-                }
-            }
+        start(Collections.singletonList(device), logSrc);
+    }
 
-            @Override
-            public void onStop(String reason) {
-            }
-        };
+    /**
+     * Shows the log of the devices, the lines of multiple devices are merged by time.
+     */
+    public void start(List<Device> devices, LogAttr.LogSource logSrc) {
+        mDevices = devices;
         mLogSource = logSrc;
-        mLogTask = new CommandReceiverTask(device, logSrc.getCommand(), t);
-        mTextUpdater = new UpdatePaneTaskUtil(this);
-        startLogTask();
+        mBinaryCB.setEnabled(logSrc.getBinaryCommand() != null);
+        refilter();
+        mDispatcher = new LogDispatcher(mLogView, mRateStatus,
+                devices.size() > 1 ? LogDispatcher.MERGE_DELAY_MS : 0);
+        mDispatcher.start();
+        subscribe();
         setVisible(true);
     }
 
-    private void restart() {
-        mLogPane.setText("");
-        mRestart = true;
-        mLogTask.stop();
+    private void subscribe() {
+        final LogIngestService service = LogIngestService.getInstance();
+        final HashMap<Integer, String> labels = new HashMap<>();
+        for (Device device : mDevices) {
+            final LogIngestService.Source source = service.subscribe(
+                    device, mLogSource, mBinaryMode, mLogSink);
+            mSources.add(source);
+            labels.put(source.getId(), source.getLabel());
+        }
+        mLogView.setSourceLabels(mSources.size() > 1 ? labels : null);
     }
 
-    private static Log.LogLevel getLogLevel(char c) {
-        final Log.LogLevel lv = Log.LogLevel.getByLetter(c);
-        return lv != null ? lv : Log.LogLevel.ERROR;
+    private void unsubscribe() {
+        final LogIngestService service = LogIngestService.getInstance();
+        for (LogIngestService.Source source : mSources) {
+            service.unsubscribe(source, mLogSink);
+        }
+        mSources.clear();
     }
 
-    private boolean okToShow(String log) {
-        if (mLogSource.hasLevel) {
-            if (log.length() > 31
-                    && getLogLevel(log.charAt(31)).getPriority() < mLevel.getPriority()) {
-                return false;
-            }
+    private void showStats() {
+        if (mSources.isEmpty()) {
+            return;
         }
-        final String ex = mExcludeTF.getCurrentLowerCaseStr();
-        final String in = mIncludeTF.getCurrentLowerCaseStr();
-        final boolean normalExclude = ex.length() > mFilterLen && !mExcludeTF.isRegExpMode();
-        final boolean normalInclude = in.length() > mFilterLen && !mIncludeTF.isRegExpMode();
-        final String msg = (normalExclude || normalInclude) ? log.toLowerCase() : "";
-        if (normalExclude) {
-            if (msg.contains(ex)) {
-                return false;
+        final ArrayList<String> labels = new ArrayList<>();
+        final ArrayList<LogStats> stats = new ArrayList<>();
+        for (LogIngestService.Source source : mSources) {
+            labels.add(source.getLabel());
+            stats.add(source.getStats());
+        }
+        new LogStatsFrame(getTitle() + " stats", labels, stats).setVisible(true);
+    }
+
+    private LogSpool getSpool() {
+        if (mSpool != null) {
+            return mSpool;
+        }
+        return mSources.size() == 1 ? mSources.get(0).getSpool() : null;
+    }
+
+    /**
+     * Shows a session which was spooled to the file, e.g. the session of a crashed run.
+     */
+    public void open(File spoolFile) {
+        try {
+            final LogSpool spool = LogSpool.open(spoolFile);
+            startOffline(spool, Math.max(0, spool.getLineCount() - LOG_MAX_LINES),
+                    0, Long.MAX_VALUE, null);
+        } catch (IOException e) {
+            DLog.ex(e);
+        }
+    }
+
+    // Reads the lines in background, and waits if the view cannot take them in time.
+    private void startOffline(LogSpool spool, long fromLine, long fromTime, long toTime,
+                              LogReceiver.Filter filter) {
+        mSpool = spool;
+        mBinaryCB.setEnabled(false);
+        refilter();
+        mDispatcher = new LogDispatcher(mLogView, mRateStatus, 0);
+        mDispatcher.start();
+        new Thread(() -> {
+            final LogParser.Chunk[] chunk = {new LogParser.Chunk(1024, 128 * 1024)};
+            try {
+                spool.scan(fromLine, fromTime, toTime, filter, (line, r) -> {
+                    chunk[0].add(r);
+                    if (chunk[0].size == chunk[0].start.length) {
+                        mDispatcher.post(chunk[0]);
+                        chunk[0] = new LogParser.Chunk(1024, 128 * 1024);
+                        while (mDispatcher.getBacklog() > LOG_MAX_LINES && !mClosed) {
+                            try {
+                                Thread.sleep(10);
+                            } catch (InterruptedException e) {
+                                return false;
+                            }
+                        }
+                    }
+                    return !mClosed;
+                });
+            } catch (IOException e) {
+                DLog.ex(e);
             }
-        } else if (mExcludeTF.isRegExpMode()) {
-            if (mExcludeTF.match(log)) {
-                return false;
+            if (chunk[0].size > 0) {
+                mDispatcher.post(chunk[0]);
             }
+        }, "LogSpoolReader").start();
+        setVisible(true);
+    }
+
+    static File getSpoolDir() {
+        return new File(Env.getWorkspace(), "logcat");
+    }
+
+    // Returns {from, to}, or null if it is cancelled or invalid.
+    private long[] askTimeRange() {
+        final String str = JOptionPane.showInputDialog(this,
+                "Time range \"MM-dd HH:mm[:ss] - MM-dd HH:mm[:ss]\", empty for all", mTimeRange);
+        if (str == null) {
+            return null;
+        }
+        mTimeRange = str.trim();
+        if (mTimeRange.isEmpty()) {
+            return new long[]{0, Long.MAX_VALUE};
         }
-        if (normalInclude) {
-            return msg.contains(in);
-        } else if (mIncludeTF.isRegExpMode()) {
-            return mIncludeTF.match(log);
+        final LogParser parser = new LogParser();
+        final int sep = mTimeRange.indexOf(" - ");
+        final long from = parser.parseTime(sep < 0 ? mTimeRange : mTimeRange.substring(0, sep).trim());
+        final long to = sep < 0 ? Long.MAX_VALUE : parser.parseTime(mTimeRange.substring(sep + 3).trim());
+        if (from < 0 || to < 0) {
+            JOptionPane.showMessageDialog(this, "Invalid time range: " + mTimeRange);
+            return null;
         }
+        return new long[]{from, to};
+    }
 
-        return !mDropStartingLog
-                || (mDropStartingLog = System.currentTimeMillis() - mLastStartTime < 500);
+    // A copy of the current filter which can be used in another thread.
+    private LogReceiver.Filter copyFilter() {
+        final LogFilter filter = LogFilter.compile(
+                mIncludeTF.getLength() > mFilterLen ? mIncludeTF.getText() : "",
+                mIncludeTF.isRegExpMode(),
+                mExcludeTF.getLength() > mFilterLen ? mExcludeTF.getText() : "",
+                mExcludeTF.isRegExpMode());
+        final int minLevel = mLogSource.hasLevel ? mLevel.getPriority() : 0;
+        return r -> (r.level == LogParser.LEVEL_UNKNOWN || r.level >= minLevel) && filter.accept(r);
     }
 
-    private void appendLine(String log) {
-        int start = -1, end = -1;
-        if (mHighlightTF.getLength() > mFilterLen) {
-            String hl = mHighlightTF.getCurrentLowerCaseStr();
-            int pos = log.toLowerCase().indexOf(hl);
-            if (pos > -1) {
-                start = mLogPane.getDocument().getLength() + pos;
-                end = start + hl.length();
+    private JPopupMenu createSessionMenu() {
+        final JPopupMenu menu = new JPopupMenu();
+        JMenuItem item = new JMenuItem("Open...");
+        item.setToolTipText("Open a spooled session");
+        item.addActionListener(e -> {
+            final JFileChooser chooser = new JFileChooser(getSpoolDir());
+            chooser.setFileFilter(new FileNameExtensionFilter("Log session",
+                    LogSpool.SUFFIX.substring(1)));
+            if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                final File f = chooser.getSelectedFile();
+                new LogFrame(f.getName()).open(f);
             }
-        }
-        mLogPane.append(log);
-        if (start > 0) {
-            try {
-                mLogPane.getHighlighter().addHighlight(start, end, mHlPainter);
-            } catch (BadLocationException ex) {
-                ex.printStackTrace();
+        });
+        menu.add(item);
+        item = new JMenuItem("Search...");
+        item.setToolTipText("Show the lines of this session in a time range which match the filter");
+        item.addActionListener(e -> {
+            final LogSpool spool = getSpool();
+            final long[] range = spool != null ? askTimeRange() : null;
+            if (range == null) {
+                return;
+            }
+            final String title = getTitle() + " search " + mTimeRange;
+            final LogReceiver.Filter filter = copyFilter();
+            new Thread(() -> {
+                try {
+                    spool.flush();
+                    final LogSpool result = LogSpool.open(spool.getFile());
+                    SwingUtilities.invokeLater(() -> new LogFrame(title).startOffline(
+                            result, 0, range[0], range[1], filter));
+                } catch (IOException ex) {
+                    DLog.ex(ex);
+                }
+            }, "LogSearch").start();
+        });
+        menu.add(item);
+        item = new JMenuItem("Export...");
+        item.setToolTipText("Save the lines of this session in a time range which match the filter");
+        item.addActionListener(e -> {
+            final LogSpool spool = getSpool();
+            final long[] range = spool != null ? askTimeRange() : null;
+            if (range == null) {
+                return;
             }
+            final LogReceiver.Filter filter = copyFilter();
+            MainUi.saveToFile(path -> new Thread(() -> {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(path), 65536)) {
+                    spool.flush();
+                    spool.scan(0, range[0], range[1], filter, (line, r) -> {
+                        try {
+                            out.write(r.data, r.start, r.length());
+                            out.write('\n');
+                        } catch (IOException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                        return true;
+                    });
+                    DLog.i("Exported to " + path);
+                } catch (IOException | RuntimeException ex) {
+                    DLog.ex(ex);
+                }
+            }, "LogExport").start(), spool.getFile().getName().replace(LogSpool.SUFFIX, ".txt"), false);
+        });
+        menu.add(item);
+        menu.addSeparator();
+        final JCheckBoxMenuItem record = new JCheckBoxMenuItem("Record new sessions",
+                Env.isLogcatSpoolEnabled());
+        record.setToolTipText("Save the logs of new streams to " + getSpoolDir()
+                + ", older files are deleted over " + (Env.getLogcatSpoolMaxBytes() >> 20) + " MB");
+        record.addActionListener(e -> Env.set(Env.PROP_LOGCAT_SPOOL,
+                String.valueOf(record.isSelected())));
+        menu.add(record);
+        return menu;
+    }
+
+    private void restart() {
+        mLogView.clear();
+        unsubscribe();
+        subscribe();
+    }
+
+    // Called on the EDT for the lines in the buffer, the buffer keeps the filtered out lines.
+    private boolean okToShow(LogParser.Record r) {
+        if (mLogSource.hasLevel && r.level != LogParser.LEVEL_UNKNOWN
+                && r.level < mLevel.getPriority()) {
+            return false;
         }
+        return mFilter.accept(r);
     }
 
-    static class LoggerPane extends ContextMenuUtil.ACMJTextArea {
+    private void refilter() {
+        mFilter = LogFilter.compile(
+                mIncludeTF.getLength() > mFilterLen ? mIncludeTF.getText() : "",
+                mIncludeTF.isRegExpMode(),
+                mExcludeTF.getLength() > mFilterLen ? mExcludeTF.getText() : "",
+                mExcludeTF.isRegExpMode());
+        mLogView.setFilter(this::okToShow);
+    }
 
+    /**
+     * Shows the lines of a LogBuffer. The cell size is fixed, so only the visible rows
+     * are rendered and nothing is measured per line.
+     */
+    static class LogListView extends JList<String> {
+        private final LogBuffer mBuffer;
+        private final LogListModel mModel;
         private boolean mIsAutoScroll = true;
+        private String mHighlight = "";
+        private int mCharWidth;
+        private int mMaxLineLength;
 
-        LoggerPane() {
+        LogListView(LogBuffer buffer) {
+            super(new LogListModel(buffer));
+            mBuffer = buffer;
+            mModel = (LogListModel) getModel();
             setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-            setLineWrap(true);
+            final FontMetrics fm = getFontMetrics(getFont());
+            mCharWidth = fm.charWidth('m');
+            setFixedCellHeight(fm.getHeight());
+            setFixedCellWidth(mCharWidth * 80);
+            setCellRenderer(new LogCellRenderer());
+            setComponentPopupMenu(createPopupMenu());
         }
 
-        @Override
-        public void append(String str) {
-            super.append(str);
-            if (mIsAutoScroll) {
-                int len = getDocument().getLength();
-                int selEnd = getSelectionEnd();
-                if (selEnd != len && selEnd == getSelectionStart()) {
-                    setCaretPosition(len);
+        private JPopupMenu createPopupMenu() {
+            final JPopupMenu menu = new JPopupMenu();
+            JMenuItem item = new JMenuItem("Copy");
+            item.addActionListener(e -> copySelection());
+            menu.add(item);
+            item = new JMenuItem("Select All");
+            item.addActionListener(e -> {
+                if (mModel.getSize() > 0) {
+                    setSelectionInterval(0, mModel.getSize() - 1);
                 }
+            });
+            menu.add(item);
+            item = new JMenuItem("Clear All");
+            item.addActionListener(e -> clear());
+            menu.add(item);
+            return menu;
+        }
+
+        private void copySelection() {
+            final StringBuilder sb = new StringBuilder(256);
+            for (String line : getSelectedValuesList()) {
+                sb.append(line).append('\n');
+            }
+            if (sb.length() > 0) {
+                StringUtil.copyToClipboard(sb.toString());
+            }
+        }
+
+        LogBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        void update() {
+            mModel.sync();
+            final int maxLength = mBuffer.getMaxLineLength() + mModel.getLabelWidth();
+            if (maxLength > mMaxLineLength) {
+                mMaxLineLength = maxLength;
+                setFixedCellWidth(Math.max(80, mMaxLineLength + 1) * mCharWidth);
+            }
+            if (mIsAutoScroll && isSelectionEmpty() && mModel.getSize() > 0) {
+                ensureIndexIsVisible(mModel.getSize() - 1);
+            }
+        }
+
+        void clear() {
+            mBuffer.clear();
+            mModel.sync();
+        }
+
+        /**
+         * Applies the filter to all lines in the buffer, the selected line stays visible
+         * if it is still shown.
+         */
+        void setFilter(LogReceiver.Filter filter) {
+            final int selected = getMinSelectionIndex();
+            final long selectedSeq = selected >= 0 ? mModel.getSeq(selected) : -1;
+            mModel.setFilter(filter);
+            if (selectedSeq >= 0) {
+                final int index = mModel.indexOf(selectedSeq);
+                if (index < mModel.getSize() && mModel.getSeq(index) == selectedSeq) {
+                    setSelectedIndex(index);
+                }
+                ensureIndexIsVisible(Math.min(index, mModel.getSize() - 1));
+            } else if (mIsAutoScroll && mModel.getSize() > 0) {
+                ensureIndexIsVisible(mModel.getSize() - 1);
             }
         }
 
@@ -225,11 +484,192 @@ public class LogFrame extends JFrame {
             mIsAutoScroll = isAuto;
         }
 
+        /**
+         * Shows the label of the stream of each line, or nothing if labels is null.
+         */
+        void setSourceLabels(Map<Integer, String> labels) {
+            mModel.setSourceLabels(labels);
+            mMaxLineLength = 0;
+            update();
+            repaint();
+        }
+
+        void setHighlight(String lowerCaseStr) {
+            mHighlight = lowerCaseStr;
+            repaint();
+        }
+
+        private class LogCellRenderer extends JComponent implements ListCellRenderer<String> {
+            private String mText;
+            private boolean mSelected;
+            private Color mLevelColor;
+            private int mHighlightStart;
+
+            @Override
+            public Component getListCellRendererComponent(JList<? extends String> list,
+                    String value, int index, boolean isSelected, boolean cellHasFocus) {
+                mText = value;
+                mSelected = isSelected;
+                mLevelColor = LogAttr.getLogLevelColor(mBuffer.getLevel(mModel.getSeq(index)));
+                mHighlightStart = mHighlight.isEmpty() ? -1 : indexOfIgnoreCase(value, mHighlight);
+                return this;
+            }
+
+            // The index is of the original text, its lower case may have another length.
+            private int indexOfIgnoreCase(String text, String s) {
+                for (int i = 0, last = text.length() - s.length(); i <= last; i++) {
+                    if (text.regionMatches(true, i, s, 0, s.length())) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            @Override
+            protected void paintComponent(Graphics g) {
+                g.setColor(mSelected ? getSelectionBackground() : LogListView.this.getBackground());
+                g.fillRect(0, 0, getWidth(), getHeight());
+                g.setFont(LogListView.this.getFont());
+                final FontMetrics fm = g.getFontMetrics();
+                if (mHighlightStart >= 0) {
+                    final int x = 2 + fm.stringWidth(mText.substring(0, mHighlightStart));
+                    final int w = fm.stringWidth(mText.substring(mHighlightStart,
+                            mHighlightStart + mHighlight.length()));
+                    g.setColor(Color.YELLOW);
+                    g.fillRect(x, 0, w, getHeight());
+                }
+                g.setColor(mSelected ? getSelectionForeground() : mLevelColor);
+                g.drawString(mText, 2, fm.getAscent());
+            }
+        }
+    }
+
+    /**
+     * The rows of the list are the lines of the buffer which are accepted by the filter.
+     * The sequence numbers of the rows are kept in order, so the changes of the buffer are
+     * notified as one removal from the head and one addition to the tail, and a new filter
+     * only scans the buffer again.
+     */
+    static class LogListModel extends AbstractListModel<String> {
+        private final LogBuffer mBuffer;
+        private final LogParser.Record mRecord = new LogParser.Record();
+        private LogReceiver.Filter mFilter;
+        private Map<Integer, String> mLabels;
+        private int mLabelWidth;
+        private long[] mSeqs = new long[1024];
+        private int mHead;
+        private int mSize;
+        private long mScannedSeq;
+
+        LogListModel(LogBuffer buffer) {
+            mBuffer = buffer;
+            mScannedSeq = buffer.getFirstSeq();
+        }
+
+        void setFilter(LogReceiver.Filter filter) {
+            mFilter = filter;
+            refilter();
+        }
+
+        void setSourceLabels(Map<Integer, String> labels) {
+            mLabels = labels;
+            mLabelWidth = 0;
+            if (labels != null) {
+                for (String label : labels.values()) {
+                    mLabelWidth = Math.max(mLabelWidth, label.length() + 1);
+                }
+            }
+            if (mSize > 0) {
+                fireContentsChanged(this, 0, mSize - 1);
+            }
+        }
+
+        int getLabelWidth() {
+            return mLabelWidth;
+        }
+
+        void refilter() {
+            final int oldSize = mSize;
+            mHead = 0;
+            mSize = 0;
+            mScannedSeq = mBuffer.getFirstSeq();
+            if (oldSize > 0) {
+                fireIntervalRemoved(this, 0, oldSize - 1);
+            }
+            sync();
+        }
+
+        void sync() {
+            final long first = mBuffer.getFirstSeq();
+            int removed = 0;
+            while (removed < mSize && mSeqs[mHead + removed] < first) {
+                removed++;
+            }
+            if (removed > 0) {
+                mHead += removed;
+                mSize -= removed;
+                fireIntervalRemoved(this, 0, removed - 1);
+            }
+            if (mScannedSeq < first) {
+                mScannedSeq = first;
+            }
+            final int from = mSize;
+            for (final long next = mBuffer.getNextSeq(); mScannedSeq < next; mScannedSeq++) {
+                if (mFilter != null) {
+                    mBuffer.getRecord(mScannedSeq, mRecord);
+                    if (!mFilter.accept(mRecord)) {
+                        continue;
+                    }
+                }
+                add(mScannedSeq);
+            }
+            if (mSize > from) {
+                fireIntervalAdded(this, from, mSize - 1);
+            }
+        }
+
+        private void add(long seq) {
+            if (mHead + mSize == mSeqs.length) {
+                final long[] dst = mSize * 2 > mSeqs.length ? new long[mSeqs.length * 2] : mSeqs;
+                System.arraycopy(mSeqs, mHead, dst, 0, mSize);
+                mSeqs = dst;
+                mHead = 0;
+            }
+            mSeqs[mHead + mSize++] = seq;
+        }
+
+        long getSeq(int index) {
+            return mSeqs[mHead + index];
+        }
+
+        /**
+         * Returns the index of the row of seq, or the index of the next row if it is not shown.
+         */
+        int indexOf(long seq) {
+            final int i = Arrays.binarySearch(mSeqs, mHead, mHead + mSize, seq);
+            return (i >= 0 ? i : -i - 1) - mHead;
+        }
+
+        @Override
+        public int getSize() {
+            return mSize;
+        }
+
         @Override
-        public void scrollRectToVisible(Rectangle aRect) {
-            if (mIsAutoScroll) {
-                super.scrollRectToVisible(aRect);
+        public String getElementAt(int index) {
+            final long seq = getSeq(index);
+            if (mLabels == null) {
+                return mBuffer.getText(seq);
             }
+            final StringBuilder sb = new StringBuilder(mLabelWidth + 128);
+            final String label = mLabels.get(mBuffer.getSource(seq));
+            if (label != null) {
+                sb.append(label);
+            }
+            while (sb.length() < mLabelWidth) {
+                sb.append(' ');
+            }
+            return sb.append(mBuffer.getText(seq)).toString();
         }
     }
 
@@ -238,7 +678,11 @@ public class LogFrame extends JFrame {
         control1.add(Box.createHorizontalStrut(10));
 
         control1.add(new JLabel("Highlight: "));
-        setTextFieldOnChange(mHighlightTF = new JFilterTextField(20, mFilterLen));
+        mHighlightTF = new JFilterTextField(20, mFilterLen);
+        final Runnable updateHighlight = () -> mLogView.setHighlight(
+                mHighlightTF.getLength() > mFilterLen ? mHighlightTF.getCurrentLowerCaseStr() : "");
+        mHighlightTF.setOnLengthSatisfiedListener(updateHighlight);
+        mHighlightTF.setOnEmpty(updateHighlight);
         control1.add(mHighlightTF);
         control1.add((newClearTextButton(mHighlightTF)));
         control1.add(Box.createHorizontalStrut(10));
@@ -270,13 +714,13 @@ public class LogFrame extends JFrame {
         mAutoScrollCB = new JCheckBox("Auto Scroll");
         mAutoScrollCB.setMargin(new Insets(0, 10, 0, 10));
         mAutoScrollCB.setSelected(true);
-        mAutoScrollCB.addActionListener(e -> mLogPane.setAutoScroll(mAutoScrollCB.isSelected()));
-        mLogPane.setAutoScroll(mAutoScrollCB.isSelected());
+        mAutoScrollCB.addActionListener(e -> mLogView.setAutoScroll(mAutoScrollCB.isSelected()));
+        mLogView.setAutoScroll(mAutoScrollCB.isSelected());
         logLevelPanel.add(mAutoScrollCB);
         control1.add(logLevelPanel);
 
         final JButton clear = new JButton("Clear");
-        clear.addActionListener(e -> mLogPane.setText(""));
+        clear.addActionListener(e -> mLogView.clear());
         control1.add(clear);
 
         final String pauseStr = "  Pause  ";
@@ -300,6 +744,9 @@ public class LogFrame extends JFrame {
         control2.add(Box.createHorizontalStrut(10));
 
         setTextFieldOnChange(mIncludeTF = new JFilterTextField(20, mFilterLen, true));
+        mIncludeTF.setToolTipText("<html>Terms separated by space, \"quoted\" to contain space,"
+                + " -term to exclude<br>tag:name pid:123 level:W regex:pattern<br>"
+                + "Press ctrl + R to enter regular expression mode</html>");
         control2.add(new JLabel("include: "));
         control2.add(mIncludeTF);
         control2.add(newClearTextButton(mIncludeTF));
@@ -310,6 +757,22 @@ public class LogFrame extends JFrame {
         control2.add(mExcludeTF);
         control2.add(newClearTextButton(mExcludeTF));
         control2.add(Box.createHorizontalStrut(10));
+        mBinaryCB = new JCheckBox("Binary");
+        mBinaryCB.setToolTipText("Read logcat -B, it falls back to text if not supported");
+        mBinaryCB.addActionListener(e -> {
+            mBinaryMode = mBinaryCB.isSelected();
+            restart();
+        });
+        control2.add(mBinaryCB);
+        final JButton session = new JButton("Session");
+        final JPopupMenu sessionMenu = createSessionMenu();
+        session.addActionListener(e -> sessionMenu.show(session, 0, session.getHeight()));
+        control2.add(session);
+        final JButton stats = new JButton("Stats");
+        stats.setToolTipText("Show the rates of the tags and pids");
+        stats.addActionListener(e -> showStats());
+        control2.add(stats);
+        control2.add(mRateStatus);
         return control2;
     }
 
@@ -321,7 +784,7 @@ public class LogFrame extends JFrame {
             String t = tf.getText();
             if (t != null && t.length() > 0) {
                 tf.setText("");
-                restart();
+                refilter();
             }
         });
 
@@ -332,14 +795,14 @@ public class LogFrame extends JFrame {
         @Override
         public void actionPerformed(ActionEvent e) {
             mLevel = Log.LogLevel.getByLetter(e.getActionCommand().charAt(0));
-            restart();
+            refilter();
         }
     };
 
     private JFilterTextField.TimerTaskCreator mRefreshAction = () -> new TimerTask() {
         @Override
         public void run() {
-            restart();
+            SwingUtilities.invokeLater(LogFrame.this::refilter);
         }
     };
 
@@ -347,91 +810,183 @@ public class LogFrame extends JFrame {
         tf.setChangeTask(mControlTimer, mRefreshAction);
     }
 
-    private abstract static class TaskPool<T extends TaskPool<T>.Task> {
-        private final LinkedList<T> tasks = new LinkedList<>();
-        private int limit = 256;
+    /**
+     * Collects the chunks of lines from the reader thread in a lock-free queue, and appends all
+     * queued lines to the view once per frame on the EDT. A frame stops appending
+     * after a time budget and continues in the next frame, so no line is dropped.
+     * If the merge delay is set, the lines of the streams are held for the delay and merged
+     * by time, so the lines of multiple devices are ordered unless a stream is late more than
+     * the delay.
+     */
+    private static class LogDispatcher implements ActionListener {
+        final static int FRAME_INTERVAL_MS = 16;
+        final static long FRAME_BUDGET_NANOS = 8 * 1000 * 1000;
+        final static int MERGE_DELAY_MS = 300;
+        final ConcurrentLinkedQueue<LogParser.Chunk> mQueue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger mBacklog = new AtomicInteger();
+        final javax.swing.Timer mTimer = new javax.swing.Timer(FRAME_INTERVAL_MS, this);
+        final LogListView mView;
+        final JLabel mStatus;
+        final int mMergeDelay;
+        final ArrayList<MergeQueue> mMergeQueues = new ArrayList<>();
+        long mLineCount;
+        long mRateStartTime = System.nanoTime();
+        long mRateStartCount;
+        int mLinesPerSecond;
 
-        void preAllocate(int preSize) {
-            limit = preSize;
-            for (int i = 0; i < limit; i++) {
-                tasks.add(create());
-            }
+        LogDispatcher(LogListView view, JLabel status, int mergeDelayMs) {
+            mView = view;
+            mStatus = status;
+            mMergeDelay = mergeDelayMs;
         }
 
-        abstract class Task implements Runnable {
-            @Override
-            public void run() {
-                runTask();
-                recycle();
+        void start() {
+            mTimer.start();
+        }
+
+        void stop() {
+            mTimer.stop();
+        }
+
+        /**
+         * Called from any thread.
+         */
+        void post(LogParser.Chunk chunk) {
+            mQueue.offer(chunk);
+            mBacklog.addAndGet(chunk.size);
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            final int count = mMergeDelay > 0 ? merge() : append();
+            if (count > 0) {
+                mBacklog.addAndGet(-count);
+                mLineCount += count;
+                mView.update();
             }
+            final long now = System.nanoTime();
+            if (now - mRateStartTime >= 1000 * 1000 * 1000) {
+                mLinesPerSecond = (int) ((mLineCount - mRateStartCount) * 1000 * 1000 * 1000
+                        / (now - mRateStartTime));
+                mRateStartTime = now;
+                mRateStartCount = mLineCount;
+                mStatus.setText(mLinesPerSecond + " lines/s, backlog " + getBacklog() + "  ");
+            }
+        }
 
-            abstract void runTask();
+        private int append() {
+            final LogBuffer buffer = mView.getBuffer();
+            final long deadline = System.nanoTime() + FRAME_BUDGET_NANOS;
+            int count = 0;
+            LogParser.Chunk chunk;
+            while ((chunk = mQueue.poll()) != null) {
+                for (int i = 0; i < chunk.size; i++) {
+                    buffer.append(chunk, i);
+                }
+                count += chunk.size;
+                if (System.nanoTime() > deadline) {
+                    break;
+                }
+            }
+            return count;
+        }
 
-            @SuppressWarnings("unchecked")
-            private void recycle() {
-                synchronized (tasks) {
-                    if (tasks.size() < limit) {
-                        tasks.addLast((T) this);
+        // A k-way merge of the streams, the head line with the earliest time is appended
+        // if every stream has a line or it has waited for the delay.
+        private int merge() {
+            final long now = System.currentTimeMillis();
+            LogParser.Chunk chunk;
+            while ((chunk = mQueue.poll()) != null) {
+                MergeQueue q = null;
+                for (MergeQueue mq : mMergeQueues) {
+                    if (mq.mSource == chunk.source) {
+                        q = mq;
+                        break;
                     }
                 }
+                if (q == null) {
+                    mMergeQueues.add(q = new MergeQueue(chunk.source));
+                }
+                q.add(chunk, now);
             }
+            final LogBuffer buffer = mView.getBuffer();
+            final long deadline = System.nanoTime() + FRAME_BUDGET_NANOS;
+            final long readyTime = now - mMergeDelay;
+            int count = 0;
+            while (true) {
+                MergeQueue first = null;
+                boolean allHaveLine = true;
+                for (MergeQueue q : mMergeQueues) {
+                    if (q.isEmpty()) {
+                        allHaveLine = false;
+                    } else if (first == null || q.headTime() < first.headTime()) {
+                        first = q;
+                    }
+                }
+                if (first == null || (!allHaveLine && first.headArrival() > readyTime)) {
+                    break;
+                }
+                buffer.append(first.headChunk(), first.mHead);
+                first.next();
+                if ((++count & 255) == 0 && System.nanoTime() > deadline) {
+                    break;
+                }
+            }
+            return count;
         }
 
-        abstract T create();
+        int getLinesPerSecond() {
+            return mLinesPerSecond;
+        }
 
-        T pick() {
-            synchronized (tasks) {
-                if (!tasks.isEmpty()) {
-                    return tasks.pop();
-                }
-            }
-            return create();
+        int getBacklog() {
+            return mBacklog.get();
         }
     }
 
-    private static class UpdatePaneTaskUtil extends TaskPool<UpdatePaneTaskUtil.UpdatePaneTask> {
-        final static int BUSY_THRESHOLD = 300;
-        final AtomicInteger mEventCount = new AtomicInteger(0);
-        final ArrayList<String> mBusyBuf = new ArrayList<>(256);
-        final LogFrame mViewer;
+    // The lines of a stream which are waiting to be merged.
+    private static class MergeQueue {
+        final int mSource;
+        final ArrayDeque<LogParser.Chunk> mChunks = new ArrayDeque<>();
+        final ArrayDeque<Long> mArrivals = new ArrayDeque<>();
+        int mHead;
+        // The time of a line without time is the time of the previous line.
+        long mLastTime;
 
-        class UpdatePaneTask extends TaskPool<UpdatePaneTask>.Task {
-            private String mLine;
+        MergeQueue(int source) {
+            mSource = source;
+        }
 
-            @Override
-            void runTask() {
-                mViewer.appendLine(mLine);
-                mLine = null;
-                int remain = mEventCount.decrementAndGet();
-                if (remain == 0 && !mBusyBuf.isEmpty()) {
-                    //System.out.println("b " + mBusyBuf.size());
-                    for (int i = 0, s = mBusyBuf.size(); i < s; i++) {
-                    //    mViewer.appendLine(mBusyBuf.get(i));
-                    }
-                    mBusyBuf.clear();
-                }
+        void add(LogParser.Chunk chunk, long arrival) {
+            if (chunk.size > 0) {
+                mChunks.addLast(chunk);
+                mArrivals.addLast(arrival);
             }
         }
 
-        private UpdatePaneTaskUtil(LogFrame viewer) {
-            preAllocate(2048);
-            mViewer = viewer;
+        boolean isEmpty() {
+            return mChunks.isEmpty();
         }
 
-        @Override
-        UpdatePaneTask create() {
-            return new UpdatePaneTask();
+        LogParser.Chunk headChunk() {
+            return mChunks.peekFirst();
         }
 
-        private void appendLogLine(String l) {
-            UpdatePaneTask t = pick();
-            t.mLine = l;
-            final int remain = mEventCount.get();
-            if (remain > BUSY_THRESHOLD) {
-                mBusyBuf.add(l);
-            } else {
-                mEventCount.incrementAndGet();
-                SwingUtilities.invokeLater(t);
+        long headTime() {
+            final long t = mChunks.peekFirst().time[mHead];
+            return t != 0 ? t : mLastTime;
+        }
+
+        long headArrival() {
+            return mArrivals.peekFirst();
+        }
+
+        void next() {
+            mLastTime = headTime();
+            if (++mHead == mChunks.peekFirst().size) {
+                mChunks.removeFirst();
+                mArrivals.removeFirst();
+                mHead = 0;
             }
         }
     }
@@ -468,6 +1023,16 @@ class LogAttr {
             return " logcat " + cmd + " -v threadtime";
         }
 
+        /**
+         * Returns the command to read binary log, or null if the source is not text log.
+         */
+        public String getBinaryCommand() {
+            if (this == kernel || !hasLevel || cmd.contains("events")) {
+                return null;
+            }
+            return " logcat " + cmd + " -B";
+        }
+
         final static HashMap<String, LogSource> srcMapping = new HashMap<>();
 
         static {
@@ -484,6 +1049,15 @@ class LogAttr {
     private final static Color COLOR_GREEN = new Color(0, 150, 0);
     private final static Color COLOR_ORANGE = new Color(230, 140, 0);
 
+    public static Color getLogLevelColor(int priority) {
+        for (Log.LogLevel level : Log.LogLevel.values()) {
+            if (level.getPriority() == priority) {
+                return getLogLevelColor(level);
+            }
+        }
+        return Color.BLACK;
+    }
+
     public static Color getLogLevelColor(Log.LogLevel level) {
         switch (level) {
             case DEBUG:
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.ldt.ui;
+
+import com.android.ddmlib.CommandReceiverTask;
+import com.android.ddmlib.Device;
+import org.rh.ldt.DLog;
+import org.rh.ldt.Env;
+import org.rh.smaliex.AdbUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TimeZone;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads logcat for all LogFrames. There is one reader for each device and log source,
+ * which is shared by the frames showing it, so a stream is transferred, parsed, counted
+ * and spooled once. The readers run on a shared executor which uses virtual threads if
+ * the runtime has them. The recent chunks of a stream are kept, so a new subscriber
+ * starts with them.
+ */
+final class LogIngestService {
+    private static final int MAX_RECENT_LINES = 64 * 1024;
+    private static final LogReceiver.Filter ACCEPT_ALL = r -> true;
+    private static LogIngestService sInstance;
+
+    private final HashMap<String, Source> mSources = new HashMap<>();
+    private final ExecutorService mExecutor = createExecutor();
+    private int mNextSourceId = 1;
+
+    static synchronized LogIngestService getInstance() {
+        if (sInstance == null) {
+            sInstance = new LogIngestService();
+        }
+        return sInstance;
+    }
+
+    private static ExecutorService createExecutor() {
+        try {
+            // A blocked reader does not hold a platform thread (Java 21).
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                final Thread t = new Thread(r, "LogReader");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Adds the sink to the stream of the device and source, the stream is started if it is
+     * not running. The sink first gets the recent chunks on the calling thread, then the new
+     * chunks from the reader thread.
+     */
+    Source subscribe(Device device, LogAttr.LogSource logSrc, boolean binary,
+                     LogReceiver.Sink sink) {
+        binary &= logSrc.getBinaryCommand() != null;
+        final String key = device.getSerialNumber() + "/" + logSrc.name + (binary ? "/B" : "");
+        final Source source;
+        final ArrayList<LogParser.Chunk> recent;
+        synchronized (this) {
+            Source s = mSources.get(key);
+            if (s == null) {
+                s = new Source(mNextSourceId++, key, device, logSrc, binary);
+                mSources.put(key, s);
+                mExecutor.execute(s);
+            }
+            source = s;
+            recent = source.addSink(sink);
+        }
+        source.replay(sink, recent);
+        return source;
+    }
+
+    /**
+     * Removes the sink, the stream is stopped if it has no other sink.
+     */
+    synchronized void unsubscribe(Source source, LogReceiver.Sink sink) {
+        if (source.removeSink(sink) == 0) {
+            if (mSources.get(source.mKey) == source) {
+                mSources.remove(source.mKey);
+            }
+            source.stop();
+        }
+    }
+
+    private synchronized void onSourceEnd(Source source) {
+        if (mSources.get(source.mKey) == source) {
+            mSources.remove(source.mKey);
+        }
+    }
+
+    final class Source implements Runnable, LogReceiver.Sink {
+        final int mId;
+        final String mKey;
+        final Device mDevice;
+        final LogAttr.LogSource mLogSource;
+        private final CopyOnWriteArrayList<LogReceiver.Sink> mSinks = new CopyOnWriteArrayList<>();
+        private final ArrayDeque<LogParser.Chunk> mRecent = new ArrayDeque<>();
+        // The chunks received while the recent chunks are replayed to a new sink.
+        private final HashMap<LogReceiver.Sink, ArrayList<LogParser.Chunk>> mPending =
+                new HashMap<>();
+        private final LogStats mStats = new LogStats();
+        private int mRecentLines;
+        private volatile boolean mBinary;
+        private volatile boolean mStopped;
+        private volatile boolean mRestart;
+        private volatile CommandReceiverTask mTask;
+        private volatile LogSpool mSpool;
+        private TimerTask mSpoolFlushTask;
+
+        Source(int id, String key, Device device, LogAttr.LogSource logSrc, boolean binary) {
+            mId = id;
+            mKey = key;
+            mDevice = device;
+            mLogSource = logSrc;
+            mBinary = binary;
+        }
+
+        int getId() {
+            return mId;
+        }
+
+        String getLabel() {
+            return mDevice.getSerialNumber();
+        }
+
+        boolean isBinary() {
+            return mBinary;
+        }
+
+        LogSpool getSpool() {
+            return mSpool;
+        }
+
+        LogStats getStats() {
+            return mStats;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // The spool is created here, not on the subscribing thread with the lock.
+                createSpool();
+                while (!mStopped) {
+                    final String binaryCmd = mBinary ? mLogSource.getBinaryCommand() : null;
+                    final LogReceiver receiver = binaryCmd != null
+                            ? new BinaryLogReceiver(ACCEPT_ALL, this, getDeviceTimeZone(),
+                                    this::onBinaryUnsupported)
+                            : new LogReceiver(ACCEPT_ALL, this);
+                    mTask = new CommandReceiverTask(mDevice,
+                            binaryCmd != null ? binaryCmd : mLogSource.getCommand(), receiver);
+                    if (mStopped) {
+                        break;
+                    }
+                    mTask.run(); // Loop to read log.
+                    if (!mRestart) {
+                        break;
+                    }
+                    mRestart = false;
+                }
+            } finally {
+                onSourceEnd(this);
+                closeSpool();
+            }
+        }
+
+        // Binary entries have epoch times, text logcat shows them in the zone of the device.
+        private TimeZone getDeviceTimeZone() {
+            final String id = AdbUtil.shell(mDevice, "getprop persist.sys.timezone").trim();
+            if (!id.isEmpty()) {
+                try {
+                    return TimeZone.getTimeZone(ZoneId.of(id));
+                } catch (DateTimeException e) {
+                    DLog.i("Unknown time zone of " + getLabel() + ": " + id);
+                }
+            }
+            return TimeZone.getDefault();
+        }
+
+        // Called on the reader thread, the stream is restarted in text mode.
+        private void onBinaryUnsupported() {
+            DLog.i("Binary logcat is not available on " + getLabel() + ", fall back to text mode");
+            mBinary = false;
+            mRestart = true;
+            mTask.stop();
+        }
+
+        void stop() {
+            mStopped = true;
+            final CommandReceiverTask task = mTask;
+            if (task != null) {
+                task.stop();
+            }
+        }
+
+        // Returns the recent chunks, new chunks are held for the sink until they are replayed.
+        synchronized ArrayList<LogParser.Chunk> addSink(LogReceiver.Sink sink) {
+            mPending.put(sink, new ArrayList<>());
+            mSinks.add(sink);
+            return new ArrayList<>(mRecent);
+        }
+
+        void replay(LogReceiver.Sink sink, ArrayList<LogParser.Chunk> chunks) {
+            while (true) {
+                for (LogParser.Chunk c : chunks) {
+                    sink.onChunk(c);
+                }
+                synchronized (this) {
+                    chunks = mPending.get(sink);
+                    if (chunks == null || chunks.isEmpty()) {
+                        mPending.remove(sink);
+                        return;
+                    }
+                    mPending.put(sink, new ArrayList<>());
+                }
+            }
+        }
+
+        synchronized int removeSink(LogReceiver.Sink sink) {
+            mPending.remove(sink);
+            mSinks.remove(sink);
+            return mSinks.size();
+        }
+
+        @Override
+        public void onChunk(LogParser.Chunk chunk) {
+            chunk.source = mId;
+            mStats.add(chunk);
+            final LogSpool spool = mSpool;
+            if (spool != null) {
+                try {
+                    spool.append(chunk);
+                } catch (IOException e) {
+                    DLog.ex(e);
+                    closeSpool();
+                }
+            }
+            synchronized (this) {
+                mRecent.addLast(chunk);
+                mRecentLines += chunk.size;
+                while (mRecentLines > MAX_RECENT_LINES && mRecent.size() > 1) {
+                    mRecentLines -= mRecent.removeFirst().size;
+                }
+                for (LogReceiver.Sink sink : mSinks) {
+                    final ArrayList<LogParser.Chunk> pending = mPending.get(sink);
+                    if (pending != null) {
+                        pending.add(chunk);
+                    } else {
+                        sink.onChunk(chunk);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onStop(String reason) {
+            if (!mStopped && !mRestart) {
+                DLog.i("Log of " + mKey + " stopped: " + reason);
+                for (LogReceiver.Sink sink : mSinks) {
+                    sink.onStop(reason);
+                }
+            }
+        }
+
+        private void createSpool() {
+            if (!Env.isLogcatSpoolEnabled()) {
+                return;
+            }
+            try {
+                final File dir = LogFrame.getSpoolDir();
+                LogSpool.prune(dir, Env.getLogcatSpoolMaxBytes());
+                mSpool = LogSpool.create(dir, mDevice.getSerialNumber() + "_" + mLogSource.name);
+            } catch (IOException e) {
+                DLog.ex(e);
+                return;
+            }
+            mSpoolFlushTask = new TimerTask() {
+                @Override
+                public void run() {
+                    final LogSpool spool = mSpool;
+                    if (spool != null) {
+                        try {
+                            spool.flushIfOld();
+                        } catch (IOException e) {
+                            DLog.ex(e);
+                            closeSpool();
+                        }
+                    }
+                }
+            };
+            UiUtil.getTaskTimer().schedule(mSpoolFlushTask, 1000, 1000);
+        }
+
+        private void closeSpool() {
+            if (mSpoolFlushTask != null) {
+                mSpoolFlushTask.cancel();
+            }
+            final LogSpool spool = mSpool;
+            mSpool = null;
+            if (spool != null) {
+                try {
+                    spool.close();
+                } catch (IOException e) {
+                    DLog.ex(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rh.ldt.ui;
+
+import com.android.ddmlib.CommandReceiverTask;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Parses logcat lines of "threadtime" format in place:
+ * "MM-DD HH:MM:SS.mmm  PID  TID L TAG     : message".
+ * The fields are stored as offsets into the original bytes, so no String is created.
+ */
+final class LogParser {
+    static final int LEVEL_UNKNOWN = 0;
+
+    /**
+     * A parsed line. It is reused for every line, the offsets refer to data.
+     */
+    static final class Record {
+        byte[] data;
+        int start;
+        int end;
+        // Milliseconds since epoch, or 0 if the line has no time.
+        long time;
+        int pid;
+        int tid;
+        // Priority of Log.LogLevel, or LEVEL_UNKNOWN.
+        int level;
+        int tagStart;
+        int tagEnd;
+        int msgStart;
+
+        int length() {
+            return end - start;
+        }
+    }
+
+    private final Calendar mCalendar = Calendar.getInstance();
+    private int mCachedDate = -1;
+    private long mCachedDayStart;
+
+    static int levelOf(byte letter) {
+        switch (letter) {
+            case 'V': return 2;
+            case 'D': return 3;
+            case 'I': return 4;
+            case 'W': return 5;
+            case 'E': return 6;
+            case 'A':
+            case 'F': return 7;
+            default: return LEVEL_UNKNOWN;
+        }
+    }
+
+    private static int digits(byte[] a, int pos, int count) {
+        int v = 0;
+        for (int i = pos; i < pos + count; i++) {
+            final int d = a[i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    /**
+     * Parses a[start, end) which doesn't include the line separator. If it is not
+     * a threadtime line, only the range is set and the other fields are empty.
+     * Returns whether the fields were parsed.
+     */
+    boolean parse(byte[] a, int start, int end, Record r) {
+        r.data = a;
+        r.start = start;
+        r.end = end;
+        r.time = 0;
+        r.pid = r.tid = 0;
+        r.level = LEVEL_UNKNOWN;
+        r.tagStart = r.tagEnd = r.msgStart = start;
+        if (end - start < 22 || a[start + 2] != '-' || a[start + 5] != ' '
+                || a[start + 8] != ':' || a[start + 14] != '.') {
+            return false;
+        }
+        final int month = digits(a, start, 2);
+        final int day = digits(a, start + 3, 2);
+        final int hour = digits(a, start + 6, 2);
+        final int minute = digits(a, start + 9, 2);
+        final int second = digits(a, start + 12, 2);
+        final int millis = digits(a, start + 15, 3);
+        if ((month | day | hour | minute | second | millis) < 0) {
+            return false;
+        }
+        int i = start + 18;
+        while (i < end && a[i] == ' ') {
+            i++;
+        }
+        int pid = 0;
+        for (; i < end && a[i] >= '0' && a[i] <= '9'; i++) {
+            pid = pid * 10 + a[i] - '0';
+        }
+        while (i < end && a[i] == ' ') {
+            i++;
+        }
+        int tid = 0;
+        for (; i < end && a[i] >= '0' && a[i] <= '9'; i++) {
+            tid = tid * 10 + a[i] - '0';
+        }
+        while (i < end && a[i] == ' ') {
+            i++;
+        }
+        if (i + 2 > end || a[i + 1] != ' ') {
+            return false;
+        }
+        r.level = levelOf(a[i]);
+        r.pid = pid;
+        r.tid = tid;
+        r.time = getDayStart(month, day) + ((hour * 60L + minute) * 60 + second) * 1000 + millis;
+        final int tagStart = i + 2;
+        int tagEnd = tagStart;
+        while (tagEnd + 1 < end && !(a[tagEnd] == ':' && a[tagEnd + 1] == ' ')) {
+            tagEnd++;
+        }
+        r.msgStart = tagEnd + 1 < end ? tagEnd + 2 : end;
+        if (tagEnd + 1 >= end) {
+            tagEnd = end;
+        }
+        while (tagEnd > tagStart && a[tagEnd - 1] == ' ') {
+            tagEnd--;
+        }
+        r.tagStart = tagStart;
+        r.tagEnd = tagEnd;
+        return true;
+    }
+
+    // The lines have no year, the current year is assumed.
+    /**
+     * Parses "MM-dd HH:mm[:ss[.SSS]]" as the time of a line, returns -1 if it is invalid.
+     */
+    long parseTime(String str) {
+        final int[] f = new int[6];
+        final char[] seps = {'-', ' ', ':', ':', '.'};
+        int n = 0;
+        int i = 0;
+        final int len = str.length();
+        while (n < f.length) {
+            final int from = i;
+            for (; i < len && str.charAt(i) >= '0' && str.charAt(i) <= '9'; i++) {
+                f[n] = f[n] * 10 + str.charAt(i) - '0';
+            }
+            if (i == from || i - from > 3) {
+                return -1;
+            }
+            n++;
+            if (i == len || n == f.length || str.charAt(i) != seps[n - 1]) {
+                break;
+            }
+            i++;
+        }
+        if (i != len || n < 4 || f[0] < 1 || f[0] > 12 || f[1] < 1 || f[1] > 31) {
+            return -1;
+        }
+        return getDayStart(f[0], f[1]) + ((f[2] * 60L + f[3]) * 60 + f[4]) * 1000 + f[5];
+    }
+
+    private long getDayStart(int month, int day) {
+        final int date = month * 32 + day;
+        if (date != mCachedDate) {
+            mCalendar.setTimeInMillis(System.currentTimeMillis());
+            mCalendar.set(mCalendar.get(Calendar.YEAR), month - 1, day, 0, 0, 0);
+            mCalendar.set(Calendar.MILLISECOND, 0);
+            mCachedDayStart = mCalendar.getTimeInMillis();
+            mCachedDate = date;
+        }
+        return mCachedDayStart;
+    }
+
+    /**
+     * Returns the position of the needle in a[start, end) or -1. The needle should be
+     * in lower case, ASCII letters of the text are compared case insensitively.
+     */
+    static int indexOfIgnoreCase(byte[] a, int start, int end, byte[] needle) {
+        if (needle.length == 0) {
+            return start;
+        }
+        final byte first = needle[0];
+        for (int i = start, last = end - needle.length; i <= last; i++) {
+            if (toLower(a[i]) != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < needle.length && toLower(a[i + j]) == needle[j]) {
+                j++;
+            }
+            if (j == needle.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+    }
+
+    /**
+     * A batch of lines copied out of the receive buffer, to be passed to another thread.
+     */
+    static final class Chunk {
+        // Id of the stream, see LogIngestService.Source.
+        int source;
+        byte[] data;
+        int dataLength;
+        int size;
+        int[] start;
+        int[] length;
+        int[] level;
+        int[] tagStart;
+        int[] tagLength;
+        int[] pid;
+        int[] tid;
+        long[] time;
+
+        Chunk(int lines, int bytes) {
+            data = new byte[bytes];
+            start = new int[lines];
+            length = new int[lines];
+            level = new int[lines];
+            tagStart = new int[lines];
+            tagLength = new int[lines];
+            pid = new int[lines];
+            tid = new int[lines];
+            time = new long[lines];
+        }
+
+        void add(Record r) {
+            final int len = r.length();
+            if (dataLength + len > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + len));
+            }
+            if (size == start.length) {
+                final int n = size * 2;
+                start = Arrays.copyOf(start, n);
+                length = Arrays.copyOf(length, n);
+                level = Arrays.copyOf(level, n);
+                tagStart = Arrays.copyOf(tagStart, n);
+                tagLength = Arrays.copyOf(tagLength, n);
+                pid = Arrays.copyOf(pid, n);
+                tid = Arrays.copyOf(tid, n);
+                time = Arrays.copyOf(time, n);
+            }
+            System.arraycopy(r.data, r.start, data, dataLength, len);
+            start[size] = dataLength;
+            length[size] = len;
+            level[size] = r.level;
+            tagStart[size] = r.tagStart - r.start;
+            tagLength[size] = r.tagEnd - r.tagStart;
+            pid[size] = r.pid;
+            tid[size] = r.tid;
+            time[size] = r.time;
+            dataLength += len;
+            size++;
+        }
+    }
+}
+
+/**
+ * Receives the raw output of logcat, splits and parses the lines in the receive
+ * buffer, and copies only the accepted lines into a Chunk for each received block.
+ */
+class LogReceiver implements CommandReceiverTask.OutputReceiver {
+
+    interface Filter {
+        boolean accept(LogParser.Record r);
+    }
+
+    interface Sink {
+        void onChunk(LogParser.Chunk chunk);
+
+        void onStop(String reason);
+    }
+
+    private final LogParser mParser = new LogParser();
+    private final LogParser.Record mRecord = new LogParser.Record();
+    private final Filter mFilter;
+    private final Sink mSink;
+    // The incomplete last line or entry of the previous block.
+    byte[] mPending = new byte[1024];
+    int mPendingLength;
+    private LogParser.Chunk mChunk;
+
+    LogReceiver(Filter filter, Sink sink) {
+        mFilter = filter;
+        mSink = sink;
+    }
+
+    @Override
+    public void addOutput(byte[] data, int offset, int length) {
+        final int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (mPendingLength > 0) {
+                appendPending(data, lineStart, i - lineStart);
+                processLine(mPending, 0, mPendingLength);
+                mPendingLength = 0;
+            } else {
+                processLine(data, lineStart, i);
+            }
+            lineStart = i + 1;
+        }
+        if (lineStart < end) {
+            appendPending(data, lineStart, end - lineStart);
+        }
+        flushChunk();
+    }
+
+    void appendPending(byte[] data, int offset, int length) {
+        if (mPendingLength + length > mPending.length) {
+            mPending = Arrays.copyOf(mPending, Math.max(mPending.length * 2,
+                    mPendingLength + length));
+        }
+        System.arraycopy(data, offset, mPending, mPendingLength, length);
+        mPendingLength += length;
+    }
+
+    private void processLine(byte[] a, int start, int end) {
+        while (end > start && a[end - 1] == '\r') {
+            end--;
+        }
+        if (end - start <= 1) {
+            return;
+        }
+        mParser.parse(a, start, end, mRecord);
+        onRecord(mRecord);
+    }
+
+    void onRecord(LogParser.Record r) {
+        if (mFilter.accept(r)) {
+            if (mChunk == null) {
+                mChunk = new LogParser.Chunk(256, 32 * 1024);
+            }
+            mChunk.add(r);
+        }
+    }
+
+    void flushChunk() {
+        if (mChunk != null && mChunk.size > 0) {
+            mSink.onChunk(mChunk);
+            mChunk = null;
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (mPendingLength > 0) {
+            processLine(mPending, 0, mPendingLength);
+            mPendingLength = 0;
+        }
+        flushChunk();
+    }
+
+    @Override
+    public void onStop(String reason) {
+        mSink.onStop(reason);
+    }
+}
+
+/**
+ * Receives the output of "logcat -B", the logger_entry structures of liblog:
+ * u16 payload length, u16 header size (0 in v1 with a 20 bytes header), i32 pid,
+ * i32 tid, i32 sec, i32 nsec, and more fields in newer versions. The payload of a
+ * text log is the priority, the tag and the message, both null terminated. The
+ * entries are formatted as "threadtime" lines, one for each line of the message.
+ */
+class BinaryLogReceiver extends LogReceiver {
+    private static final int MAX_PAYLOAD = 5 * 1024;
+    private static final byte[] LEVEL_LETTERS = "??VDIWEFS".getBytes();
+    private final Runnable mOnUnsupported;
+    private final LogParser.Record mRecord = new LogParser.Record();
+    // The time is shown as the device shows it, and kept as if the text was parsed.
+    private final Calendar mCalendar;
+    private final Calendar mHostCalendar = Calendar.getInstance();
+    private byte[] mLine = new byte[256];
+    private long mDayStart;
+    private long mDayEnd;
+    private long mHostDayStart;
+    private int mMonth;
+    private int mDay;
+    private boolean mInvalid;
+
+    /**
+     * @param deviceZone the time zone of the device, which text logcat uses
+     * @param onUnsupported called once if the output is not binary log, e.g. logcat
+     *                      doesn't support -B or the shell converts line separators.
+     */
+    BinaryLogReceiver(Filter filter, Sink sink, TimeZone deviceZone, Runnable onUnsupported) {
+        super(filter, sink);
+        mCalendar = Calendar.getInstance(deviceZone);
+        mOnUnsupported = onUnsupported;
+    }
+
+    private static int u16(byte[] a, int pos) {
+        return (a[pos] & 0xff) | (a[pos + 1] & 0xff) << 8;
+    }
+
+    private static int i32(byte[] a, int pos) {
+        return (a[pos] & 0xff) | (a[pos + 1] & 0xff) << 8 | (a[pos + 2] & 0xff) << 16
+                | a[pos + 3] << 24;
+    }
+
+    @Override
+    public void addOutput(byte[] data, int offset, int length) {
+        if (mInvalid) {
+            return;
+        }
+        appendPending(data, offset, length);
+        final byte[] a = mPending;
+        int pos = 0;
+        while (mPendingLength - pos >= 4) {
+            final int len = u16(a, pos);
+            final int hdr = u16(a, pos + 2);
+            final int hdrSize = hdr == 0 ? 20 : hdr;
+            if (len == 0 || len > MAX_PAYLOAD || (hdrSize != 20 && hdrSize != 24 && hdrSize != 28)) {
+                mInvalid = true;
+                mPendingLength = 0;
+                flushChunk();
+                mOnUnsupported.run();
+                return;
+            }
+            if (mPendingLength - pos < hdrSize + len) {
+                break;
+            }
+            onEntry(a, pos, pos + hdrSize, len);
+            pos += hdrSize + len;
+        }
+        mPendingLength -= pos;
+        System.arraycopy(a, pos, a, 0, mPendingLength);
+        flushChunk();
+    }
+
+    @Override
+    public void flush() {
+        flushChunk();
+    }
+
+    private void onEntry(byte[] a, int header, int payload, int len) {
+        final int end = payload + len;
+        final int priority = a[payload];
+        int tagEnd = payload + 1;
+        while (tagEnd < end && a[tagEnd] != 0) {
+            tagEnd++;
+        }
+        // Event logs have binary payload, they can't be shown without the tag map.
+        if (priority < 1 || priority > 8 || tagEnd >= end || a[end - 1] != 0) {
+            return;
+        }
+        final int pid = i32(a, header + 4);
+        final int tid = i32(a, header + 8);
+        final long time = i32(a, header + 12) * 1000L + i32(a, header + 16) / 1000000;
+        int msgEnd = end - 1;
+        while (msgEnd > tagEnd + 1 && (a[msgEnd - 1] == '\n' || a[msgEnd - 1] == 0)) {
+            msgEnd--;
+        }
+        int lineStart = tagEnd + 1;
+        while (true) {
+            int lineEnd = lineStart;
+            while (lineEnd < msgEnd && a[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            format(time, pid, tid, priority, a, payload + 1, tagEnd, lineStart, lineEnd);
+            if (lineEnd >= msgEnd) {
+                break;
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    // "MM-DD HH:MM:SS.mmm  PID  TID L TAG     : message"
+    private void format(long time, int pid, int tid, int priority, byte[] a,
+                        int tagStart, int tagEnd, int msgStart, int msgEnd) {
+        final int tagLength = tagEnd - tagStart;
+        final int msgLength = msgEnd - msgStart;
+        final int size = 48 + Math.max(tagLength, 8) + msgLength;
+        if (size > mLine.length) {
+            mLine = new byte[Math.max(size, mLine.length * 2)];
+        }
+        if (time < mDayStart || time >= mDayEnd) {
+            mCalendar.setTimeInMillis(time);
+            mMonth = mCalendar.get(Calendar.MONTH) + 1;
+            mDay = mCalendar.get(Calendar.DAY_OF_MONTH);
+            mCalendar.set(Calendar.HOUR_OF_DAY, 0);
+            mCalendar.set(Calendar.MINUTE, 0);
+            mCalendar.set(Calendar.SECOND, 0);
+            mCalendar.set(Calendar.MILLISECOND, 0);
+            mDayStart = mCalendar.getTimeInMillis();
+            mHostCalendar.clear();
+            mHostCalendar.set(mCalendar.get(Calendar.YEAR), mMonth - 1, mDay);
+            mHostDayStart = mHostCalendar.getTimeInMillis();
+            mCalendar.add(Calendar.DAY_OF_MONTH, 1);
+            mDayEnd = mCalendar.getTimeInMillis();
+        }
+        final byte[] b = mLine;
+        final int ms = (int) (time - mDayStart);
+        int p = 0;
+        p = putDigits(b, p, mMonth, 2);
+        b[p++] = '-';
+        p = putDigits(b, p, mDay, 2);
+        b[p++] = ' ';
+        p = putDigits(b, p, ms / 3600000, 2);
+        b[p++] = ':';
+        p = putDigits(b, p, ms / 60000 % 60, 2);
+        b[p++] = ':';
+        p = putDigits(b, p, ms / 1000 % 60, 2);
+        b[p++] = '.';
+        p = putDigits(b, p, ms % 1000, 3);
+        b[p++] = ' ';
+        p = putNumber(b, p, pid, 5);
+        b[p++] = ' ';
+        p = putNumber(b, p, tid, 5);
+        b[p++] = ' ';
+        b[p++] = LEVEL_LETTERS[priority];
+        b[p++] = ' ';
+        final LogParser.Record r = mRecord;
+        r.tagStart = p;
+        System.arraycopy(a, tagStart, b, p, tagLength);
+        p += tagLength;
+        r.tagEnd = p;
+        while (p < r.tagStart + 8) {
+            b[p++] = ' ';
+        }
+        b[p++] = ':';
+        b[p++] = ' ';
+        r.msgStart = p;
+        System.arraycopy(a, msgStart, b, p, msgLength);
+        p += msgLength;
+        r.data = b;
+        r.start = 0;
+        r.end = p;
+        r.time = mHostDayStart + ms;
+        r.pid = pid;
+        r.tid = tid;
+        r.level = LogParser.levelOf(LEVEL_LETTERS[priority]);
+        onRecord(r);
+    }
+
+    private static int putDigits(byte[] b, int p, int v, int count) {
+        for (int i = p + count - 1; i >= p; i--) {
+            b[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        return p + count;
+    }
+
+    // Right aligned in the width like "%5d".
+    private static int putNumber(byte[] b, int p, int v, int width) {
+        int digits = 1;
+        for (int t = v; t >= 10; t /= 10) {
+            digits++;
+        }
+        while (digits < width--) {
+            b[p++] = ' ';
+        }
+        return putDigits(b, p, v, digits);
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.ldt.ui;
+
+import org.rh.ldt.DLog;
+import org.rh.ldt.util.IntArray;
+import org.rh.ldt.util.LongArray;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only file of a log session. The lines are written in blocks compressed by
+ * Deflater, and the header of a block has its first line number and time range, so the
+ * headers are a sparse index of the file. The index is read from the headers when a file
+ * is opened, and an incomplete block at the end, e.g. after a crash, is ignored.
+ * A block is written when it is full or old, so a crash loses at most a few seconds.
+ */
+final class LogSpool implements Closeable {
+    static final String SUFFIX = ".ldtlog";
+    private static final int MAGIC = 0x4c444c31;
+    // magic, compressed length, raw length, line count, first line, min time, max time
+    private static final int HEADER_SIZE = 40;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final long MAX_BLOCK_AGE_MS = 2000;
+
+    interface LineVisitor {
+        /**
+         * The record is valid only in the call. Returns false to stop.
+         */
+        boolean visit(long line, LogParser.Record r);
+    }
+
+    // The files being written, which are not pruned.
+    private static final Set<File> sWriting = Collections.synchronizedSet(new HashSet<>());
+
+    private final File mFile;
+    // The sparse index, one entry per block.
+    private final LongArray mBlockPos = new LongArray(256);
+    private final LongArray mBlockFirstLine = new LongArray(256);
+    private final LongArray mBlockMinTime = new LongArray(256);
+    private final LongArray mBlockMaxTime = new LongArray(256);
+    private final IntArray mBlockLength = new IntArray(256);
+    private FileOutputStream mOut;
+    private Deflater mDeflater;
+    private byte[] mBlock;
+    private int mBlockSize;
+    private int mBlockLines;
+    private long mMinTime;
+    private long mMaxTime;
+    private long mBlockCreateTime;
+    private byte[] mCompressed;
+    private long mFileLength;
+    private long mLineCount;
+
+    private LogSpool(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Creates a new file named with the prefix and the current time in the directory.
+     * A number is appended to the name if a file of the same name exists, e.g. another
+     * session of the same device started in the same second.
+     */
+    static LogSpool create(File dir, String prefix) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        final String name = prefix.replaceAll("[^\\w.-]", "_") + "_"
+                + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        File file = new File(dir, name + SUFFIX);
+        for (int i = 1; !file.createNewFile(); i++) {
+            file = new File(dir, name + "_" + i + SUFFIX);
+        }
+        sWriting.add(file.getAbsoluteFile());
+        final LogSpool spool = new LogSpool(file);
+        try {
+            spool.mOut = new FileOutputStream(file);
+        } catch (IOException e) {
+            sWriting.remove(file.getAbsoluteFile());
+            throw e;
+        }
+        spool.mDeflater = new Deflater(Deflater.BEST_SPEED);
+        spool.mBlock = new byte[BLOCK_SIZE + 1024];
+        spool.mCompressed = new byte[HEADER_SIZE + BLOCK_SIZE + 1024];
+        return spool;
+    }
+
+    /**
+     * Opens an existing file to read.
+     */
+    static LogSpool open(File file) throws IOException {
+        final LogSpool spool = new LogSpool(file);
+        final byte[] header = new byte[HEADER_SIZE];
+        final ByteBuffer hb = ByteBuffer.wrap(header);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final long length = raf.length();
+            long pos = 0;
+            while (pos + HEADER_SIZE <= length) {
+                raf.seek(pos);
+                raf.readFully(header);
+                final int compressed = hb.getInt(4);
+                if (hb.getInt(0) != MAGIC || compressed < 0
+                        || pos + HEADER_SIZE + compressed > length) {
+                    break;
+                }
+                spool.addIndex(pos, HEADER_SIZE + compressed, hb.getLong(16),
+                        hb.getLong(24), hb.getLong(32));
+                spool.mLineCount = hb.getLong(16) + hb.getInt(12);
+                pos += HEADER_SIZE + compressed;
+            }
+            spool.mFileLength = pos;
+        }
+        return spool;
+    }
+
+    private void addIndex(long pos, int length, long firstLine, long minTime, long maxTime) {
+        mBlockPos.add(pos);
+        mBlockLength.add(length);
+        mBlockFirstLine.add(firstLine);
+        mBlockMinTime.add(minTime);
+        mBlockMaxTime.add(maxTime);
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    synchronized long getLineCount() {
+        return mLineCount + mBlockLines;
+    }
+
+    /**
+     * Appends the lines of the chunk, it may be called from the reader thread.
+     */
+    synchronized void append(LogParser.Chunk c) throws IOException {
+        for (int i = 0; i < c.size; i++) {
+            append(c.data, c.start[i], c.length[i], c.time[i]);
+        }
+    }
+
+    synchronized void append(byte[] a, int offset, int length, long time) throws IOException {
+        if (mOut == null) {
+            return;
+        }
+        if (mBlockSize > 0 && mBlockSize + length + 1 > BLOCK_SIZE) {
+            writeBlock();
+        }
+        if (mBlockSize + length + 1 > mBlock.length) {
+            mBlock = Arrays.copyOf(mBlock, mBlockSize + length + 1);
+        }
+        if (mBlockLines == 0) {
+            mBlockCreateTime = System.currentTimeMillis();
+            mMinTime = Long.MAX_VALUE;
+            mMaxTime = 0;
+        }
+        System.arraycopy(a, offset, mBlock, mBlockSize, length);
+        mBlockSize += length;
+        mBlock[mBlockSize++] = '\n';
+        mBlockLines++;
+        if (time != 0) {
+            mMinTime = Math.min(mMinTime, time);
+            mMaxTime = Math.max(mMaxTime, time);
+        }
+    }
+
+    /**
+     * Writes the current block if it is older than a few seconds.
+     */
+    synchronized void flushIfOld() throws IOException {
+        if (mBlockLines > 0
+                && System.currentTimeMillis() - mBlockCreateTime > MAX_BLOCK_AGE_MS) {
+            writeBlock();
+        }
+    }
+
+    synchronized void flush() throws IOException {
+        if (mBlockLines > 0) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        mDeflater.reset();
+        mDeflater.setInput(mBlock, 0, mBlockSize);
+        mDeflater.finish();
+        int compressed = HEADER_SIZE;
+        while (!mDeflater.finished()) {
+            if (compressed == mCompressed.length) {
+                mCompressed = Arrays.copyOf(mCompressed, mCompressed.length * 2);
+            }
+            compressed += mDeflater.deflate(mCompressed, compressed,
+                    mCompressed.length - compressed);
+        }
+        final long minTime = mMaxTime == 0 ? 0 : mMinTime;
+        ByteBuffer.wrap(mCompressed, 0, HEADER_SIZE).putInt(MAGIC)
+                .putInt(compressed - HEADER_SIZE).putInt(mBlockSize).putInt(mBlockLines)
+                .putLong(mLineCount).putLong(minTime).putLong(mMaxTime);
+        mOut.write(mCompressed, 0, compressed);
+        mOut.flush();
+        addIndex(mFileLength, compressed, mLineCount, minTime, mMaxTime);
+        mFileLength += compressed;
+        mLineCount += mBlockLines;
+        mBlockLines = 0;
+        mBlockSize = 0;
+    }
+
+    /**
+     * Visits the written lines from the line number, which have time in [fromTime, toTime]
+     * and are accepted by the filter. The blocks out of the time range are not read.
+     * A time range of [0, Long.MAX_VALUE] also includes the lines without time.
+     */
+    void scan(long fromLine, long fromTime, long toTime, LogReceiver.Filter filter,
+              LineVisitor visitor) throws IOException {
+        final int blockCount;
+        synchronized (this) {
+            blockCount = mBlockPos.size();
+        }
+        final boolean allTime = fromTime <= 0 && toTime == Long.MAX_VALUE;
+        final LogParser parser = new LogParser();
+        final LogParser.Record r = new LogParser.Record();
+        final Inflater inflater = new Inflater();
+        byte[] compressed = new byte[HEADER_SIZE + BLOCK_SIZE];
+        byte[] raw = new byte[BLOCK_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "r")) {
+            for (int b = 0; b < blockCount; b++) {
+                final long firstLine;
+                final int length;
+                final long pos;
+                synchronized (this) {
+                    firstLine = mBlockFirstLine.get(b);
+                    if (b + 1 < blockCount && mBlockFirstLine.get(b + 1) <= fromLine) {
+                        continue;
+                    }
+                    if (!allTime && (mBlockMaxTime.get(b) < fromTime
+                            || mBlockMinTime.get(b) > toTime)) {
+                        continue;
+                    }
+                    length = mBlockLength.get(b);
+                    pos = mBlockPos.get(b);
+                }
+                if (length > compressed.length) {
+                    compressed = new byte[length];
+                }
+                raf.seek(pos);
+                raf.readFully(compressed, 0, length);
+                final ByteBuffer header = ByteBuffer.wrap(compressed, 0, HEADER_SIZE);
+                final int rawLength = header.getInt(8);
+                if (rawLength > raw.length) {
+                    raw = new byte[rawLength];
+                }
+                inflater.reset();
+                inflater.setInput(compressed, HEADER_SIZE, length - HEADER_SIZE);
+                try {
+                    int n = 0;
+                    while (n < rawLength && !inflater.finished()) {
+                        final int count = inflater.inflate(raw, n, rawLength - n);
+                        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            throw new EOFException("Truncated block at " + pos);
+                        }
+                        n += count;
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException(e);
+                }
+                long line = firstLine;
+                for (int start = 0; start < rawLength; line++) {
+                    int end = start;
+                    while (end < rawLength && raw[end] != '\n') {
+                        end++;
+                    }
+                    if (line >= fromLine) {
+                        parser.parse(raw, start, end, r);
+                        if ((allTime || (r.time >= fromTime && r.time <= toTime))
+                                && (filter == null || filter.accept(r))
+                                && !visitor.visit(line, r)) {
+                            return;
+                        }
+                    }
+                    start = end + 1;
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mOut != null) {
+            try {
+                flush();
+            } finally {
+                mOut.close();
+                mOut = null;
+                mDeflater.end();
+                sWriting.remove(mFile.getAbsoluteFile());
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest session files in the directory until the rest is within
+     * maxBytes. The newest file and the files being written are kept.
+     */
+    static void prune(File dir, long maxBytes) {
+        final File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null || files.length < 2) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        long total = files[0].length();
+        for (int i = 1; i < files.length; i++) {
+            final File f = files[i];
+            total += f.length();
+            if (total > maxBytes && !sWriting.contains(f.getAbsoluteFile())) {
+                total -= f.length();
+                if (f.delete()) {
+                    DLog.i("Deleted old log session " + f.getName());
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LogSpool " + mFile.getName() + " lines=" + getLineCount() + " blocks="
+                + mBlockPos.size() + " bytes=" + mFileLength;
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.ldt.ui;
+
+import org.rh.ldt.DLog;
+import org.rh.ldt.util.IntArray;
+import org.rh.ldt.util.IntIntMap;
+import org.rh.ldt.util.StringTable;
+
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rolling line and byte counters of the tags and pids of a log stream. The counts of the
+ * last WINDOW_SECONDS seconds are kept in a ring of one second buckets for each key, so a
+ * line is counted in O(1) and the rates are the sums of the ring.
+ */
+final class LogStats {
+    static final int WINDOW_SECONDS = 10;
+
+    enum Kind {
+        ALL("all"), TAG("tag"), PID("pid");
+
+        final String label;
+
+        Kind(String label) {
+            this.label = label;
+        }
+    }
+
+    // Counters of the keys by dense id.
+    private static final class Counters {
+        long[] totalLines = new long[64];
+        long[] totalBytes = new long[64];
+        int[] windowLines = new int[64];
+        int[] windowBytes = new int[64];
+        // Index is id * WINDOW_SECONDS + second % WINDOW_SECONDS.
+        int[] ringLines = new int[64 * WINDOW_SECONDS];
+        int[] ringBytes = new int[64 * WINDOW_SECONDS];
+        int size;
+
+        void add(int id, int slot, int bytes) {
+            if (id >= size) {
+                if (id >= totalLines.length) {
+                    final int n = Math.max(totalLines.length * 2, id + 1);
+                    totalLines = Arrays.copyOf(totalLines, n);
+                    totalBytes = Arrays.copyOf(totalBytes, n);
+                    windowLines = Arrays.copyOf(windowLines, n);
+                    windowBytes = Arrays.copyOf(windowBytes, n);
+                    ringLines = Arrays.copyOf(ringLines, n * WINDOW_SECONDS);
+                    ringBytes = Arrays.copyOf(ringBytes, n * WINDOW_SECONDS);
+                }
+                size = id + 1;
+            }
+            final int r = id * WINDOW_SECONDS + slot;
+            totalLines[id]++;
+            totalBytes[id] += bytes;
+            windowLines[id]++;
+            windowBytes[id] += bytes;
+            ringLines[r]++;
+            ringBytes[r] += bytes;
+        }
+
+        void clearSlot(int slot) {
+            for (int id = 0, r = slot; id < size; id++, r += WINDOW_SECONDS) {
+                windowLines[id] -= ringLines[r];
+                windowBytes[id] -= ringBytes[r];
+                ringLines[r] = 0;
+                ringBytes[r] = 0;
+            }
+        }
+    }
+
+    static final class Row {
+        final String source;
+        final Kind kind;
+        final String key;
+        final long lines;
+        final long bytes;
+        final float linesPerSecond;
+        final float bytesPerSecond;
+
+        Row(String source, Kind kind, String key, long lines, long bytes,
+            float linesPerSecond, float bytesPerSecond) {
+            this.source = source;
+            this.kind = kind;
+            this.key = key;
+            this.lines = lines;
+            this.bytes = bytes;
+            this.linesPerSecond = linesPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    private final StringTable mTags = new StringTable(256);
+    private final IntIntMap mPidIds = new IntIntMap(64);
+    private final IntArray mPids = new IntArray(64);
+    private final Counters mTagCounters = new Counters();
+    private final Counters mPidCounters = new Counters();
+    private final Counters mAllCounters = new Counters();
+    private long mSecond;
+    private long mStartSecond = -1;
+
+    /**
+     * Called on the reader thread for each chunk.
+     */
+    void add(LogParser.Chunk c) {
+        add(c, System.currentTimeMillis());
+    }
+
+    synchronized void add(LogParser.Chunk c, long now) {
+        final int slot = advance(now / 1000);
+        for (int i = 0; i < c.size; i++) {
+            final int bytes = c.length[i] + 1;
+            mTagCounters.add(mTags.intern(c.data, c.start[i] + c.tagStart[i], c.tagLength[i]),
+                    slot, bytes);
+            int pid = mPidIds.get(c.pid[i], -1);
+            if (pid < 0) {
+                pid = mPids.size();
+                mPidIds.put(c.pid[i], pid);
+                mPids.add(c.pid[i]);
+            }
+            mPidCounters.add(pid, slot, bytes);
+            mAllCounters.add(0, slot, bytes);
+        }
+    }
+
+    // Clears the buckets of the seconds which are out of the window.
+    private int advance(long second) {
+        if (mStartSecond < 0) {
+            mStartSecond = second;
+        }
+        if (second > mSecond) {
+            for (long s = Math.max(mSecond + 1, second - WINDOW_SECONDS + 1); s <= second; s++) {
+                final int slot = (int) (s % WINDOW_SECONDS);
+                mTagCounters.clearSlot(slot);
+                mPidCounters.clearSlot(slot);
+                mAllCounters.clearSlot(slot);
+            }
+        }
+        mSecond = second;
+        return (int) (second % WINDOW_SECONDS);
+    }
+
+    /**
+     * Returns the rows of all keys, and the first row is the total of the stream.
+     */
+    synchronized ArrayList<Row> snapshot(String source, long now) {
+        advance(now / 1000);
+        final float seconds = Math.max(1, Math.min(WINDOW_SECONDS, mSecond - mStartSecond + 1));
+        final ArrayList<Row> rows = new ArrayList<>(mTagCounters.size + mPidCounters.size + 1);
+        addRows(rows, source, Kind.ALL, mAllCounters, seconds);
+        addRows(rows, source, Kind.TAG, mTagCounters, seconds);
+        addRows(rows, source, Kind.PID, mPidCounters, seconds);
+        return rows;
+    }
+
+    private void addRows(ArrayList<Row> rows, String source, Kind kind, Counters c,
+                         float seconds) {
+        for (int id = 0; id < c.size; id++) {
+            final String key = kind == Kind.TAG ? mTags.get(id)
+                    : kind == Kind.PID ? String.valueOf(mPids.get(id)) : "";
+            rows.add(new Row(source, kind, key, c.totalLines[id], c.totalBytes[id],
+                    c.windowLines[id] / seconds, c.windowBytes[id] / seconds));
+        }
+    }
+
+    static void writeCsv(List<Row> rows, Writer out) throws IOException {
+        out.write("source,kind,key,lines_per_second,bytes_per_second,lines,bytes\n");
+        for (Row r : rows) {
+            out.write(csv(r.source) + "," + r.kind.label + "," + csv(r.key) + ","
+                    + r.linesPerSecond + "," + r.bytesPerSecond + "," + r.lines + ","
+                    + r.bytes + "\n");
+        }
+    }
+
+    private static String csv(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+            return s;
+        }
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+}
+
+/**
+ * Shows the top tags and pids by rate of the streams, refreshed every second.
+ */
+class LogStatsFrame extends JFrame {
+    private static final int TOP_N = 100;
+    private static final String[] COLUMNS = {
+            "Device", "Kind", "Key", "Lines/s", "Bytes/s", "Lines", "Bytes"};
+    private final List<String> mLabels;
+    private final List<LogStats> mStats;
+    private final javax.swing.Timer mTimer = new javax.swing.Timer(1000, e -> refresh());
+    private final JLabel mSummary = new JLabel();
+    private List<LogStats.Row> mRows = new ArrayList<>();
+
+    private final AbstractTableModel mModel = new AbstractTableModel() {
+        @Override
+        public int getRowCount() {
+            return mRows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return column < 3 ? String.class : column < 5 ? Float.class : Long.class;
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            final LogStats.Row r = mRows.get(row);
+            switch (column) {
+                case 0: return r.source;
+                case 1: return r.kind.label;
+                case 2: return r.key;
+                case 3: return r.linesPerSecond;
+                case 4: return r.bytesPerSecond;
+                case 5: return r.lines;
+                default: return r.bytes;
+            }
+        }
+    };
+
+    LogStatsFrame(String title, List<String> labels, List<LogStats> stats) {
+        super(title);
+        mLabels = labels;
+        mStats = stats;
+        final JTable table = new JTable(mModel);
+        table.setAutoCreateRowSorter(true);
+        final JButton save = new JButton("Save CSV");
+        save.addActionListener(e -> saveCsv());
+        final JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        top.add(save);
+        top.add(mSummary);
+        final JPanel base = new JPanel(new BorderLayout());
+        base.add(top, BorderLayout.NORTH);
+        base.add(new JScrollPane(table), BorderLayout.CENTER);
+        setContentPane(base);
+        setSize(640, 480);
+        setLocationByPlatform(true);
+        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                mTimer.stop();
+            }
+        });
+        refresh();
+        mTimer.start();
+    }
+
+    private ArrayList<LogStats.Row> snapshot() {
+        final long now = System.currentTimeMillis();
+        final ArrayList<LogStats.Row> rows = new ArrayList<>();
+        for (int i = 0; i < mStats.size(); i++) {
+            rows.addAll(mStats.get(i).snapshot(mLabels.get(i), now));
+        }
+        return rows;
+    }
+
+    private void refresh() {
+        final ArrayList<LogStats.Row> all = snapshot();
+        all.sort((a, b) -> Float.compare(b.linesPerSecond, a.linesPerSecond));
+        final ArrayList<LogStats.Row> rows = new ArrayList<>();
+        int tags = 0;
+        int pids = 0;
+        float total = 0;
+        for (LogStats.Row r : all) {
+            if (r.kind == LogStats.Kind.ALL) {
+                total += r.linesPerSecond;
+            } else if (r.kind == LogStats.Kind.TAG ? tags++ < TOP_N : pids++ < TOP_N) {
+                rows.add(r);
+            }
+        }
+        mRows = rows;
+        mModel.fireTableDataChanged();
+        mSummary.setText(String.format("%.1f lines/s in the last %d seconds",
+                total, LogStats.WINDOW_SECONDS));
+    }
+
+    private void saveCsv() {
+        final ArrayList<LogStats.Row> rows = snapshot();
+        MainUi.saveToFile(path -> {
+            try (Writer out = new OutputStreamWriter(
+                    new FileOutputStream(path), StandardCharsets.UTF_8)) {
+                LogStats.writeCsv(rows, out);
+                DLog.i("Saved " + path);
+            } catch (IOException e) {
+                DLog.ex(e);
+            }
+        }, "logstats.csv", false);
+    }
+}
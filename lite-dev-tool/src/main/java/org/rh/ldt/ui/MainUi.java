@@ -19,7 +19,7 @@ package org.rh.ldt.ui;
 import org.rh.ldt.DLog;
 import org.rh.ldt.Env;
 import org.rh.ldt.util.AdbUtilEx;
-import org.rh.ldt.util.SmaliUtil;
+import org.rh.ldt.util.SmaliCache;
 
 import javax.annotation.Nonnull;
 import javax.swing.BorderFactory;
@@ -56,6 +56,7 @@ import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class MainUi extends JFrame {
@@ -121,14 +122,21 @@ public class MainUi extends JFrame {
                 mSmaliViewer.setBounds(400, 100, 800, 800);
             }
             runTask(new Task() {
+                String content;
+
                 @Override
                 public void run() {
-                    data.cls.smaliContent = SmaliUtil.getSmaliContent(data.cls.classDef);
+                    final SmaliCache cache = SmaliCache.getInstance();
+                    content = cache.getSmali(data.cls.classDef);
+                    cache.prefetch(data.siblings, data.siblings.indexOf(data.cls.classDef));
+                    DLog.v(cache.toString());
                 }
 
                 @Override
                 public void done() {
-                    mSmaliViewer.open(data.cls, data.dex);
+                    if (content != null) {
+                        mSmaliViewer.open(data.cls, data.dex, content);
+                    }
                 }
             });
         };
@@ -197,8 +205,8 @@ public class MainUi extends JFrame {
         }
     }
 
-    public static void execTask(@Nonnull final Task t) {
-        self.runTask(t);
+    public static Future<Void> execTask(@Nonnull final Task t) {
+        return self.runTask(t);
     }
 
     public static void execTaskWithConfirm(@Nonnull final Task t, String title, String msg) {
@@ -207,13 +215,13 @@ public class MainUi extends JFrame {
         }
     }
 
-    void runTask(@Nonnull final Task t) {
+    Future<Void> runTask(@Nonnull final Task t) {
         mProgressBar.setVisible(true);
+        mWorking.incrementAndGet();
         t.prepare();
-        new SwingWorker<Void, Void>() {
+        final SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
             @Override
             protected Void doInBackground() {
-                mWorking.incrementAndGet();
                 try {
                     t.run();
                 } catch (Exception e) {
@@ -229,7 +237,9 @@ public class MainUi extends JFrame {
                 }
                 t.done();
             }
-        }.execute();
+        };
+        worker.execute();
+        return worker;
     }
 
     public static void showToast(String text) {
@@ -61,12 +61,13 @@ import java.awt.event.ActionListener;
 import java.io.File;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ProjectPanel extends JPanel {
-
     public static JPanel create() {
         JPanel basePanel = new JPanel(new BorderLayout());
         basePanel.add(new PathPanel(), BorderLayout.NORTH);
@@ -84,9 +85,9 @@ public class ProjectPanel extends JPanel {
         final Project project;
         final DevicePanel panel;
 
-        private ProjectItem(Project p) {
+        private ProjectItem(ProjectPanel owner, Project p) {
             project = p;
-            panel = new DevicePanel(p);
+            panel = new DevicePanel(owner, p);
             p.addStatusChangeListener(panel);
         }
     }
@@ -152,8 +153,18 @@ public class ProjectPanel extends JPanel {
         monitorWorkspace();
     }
 
+    List<Device> getOnlineDevices() {
+        final ArrayList<Device> devices = new ArrayList<>();
+        for (Device d : mProjectByDevice.keySet()) {
+            if (d.isOnline()) {
+                devices.add(d);
+            }
+        }
+        return devices;
+    }
+
     private void addProject(Properties prop, ProjectItem pi, boolean top, boolean refresh) {
-        ProjectItem p = pi == null ? new ProjectItem(new Project(prop)) : pi;
+        ProjectItem p = pi == null ? new ProjectItem(this, new Project(prop)) : pi;
         if (mProjectByName.get(p.project.name) == null) {
             mProjectByName.put(p.project.name, p);
             add(p.panel, top ? 0 : -1);
@@ -188,7 +199,7 @@ public class ProjectPanel extends JPanel {
                         Project p = new Project(device);
                         if (p.iValid()) {
                             device.logError = true;
-                            pi = new ProjectItem(p);
+                            pi = new ProjectItem(ProjectPanel.this, p);
                         }
                     }
 
@@ -302,10 +313,10 @@ public class ProjectPanel extends JPanel {
         final Project mProject;
         final ButtonPanel mBtnPanel;
 
-        DevicePanel(final Project project) {
+        DevicePanel(ProjectPanel owner, final Project project) {
             super(new BorderLayout());
             mProject = project;
-            mBtnPanel = new ButtonPanel(project);
+            mBtnPanel = new ButtonPanel(owner, project);
             project.addStatusChangeListener(mBtnPanel);
             SpringLayout layout = new SpringLayout();
             JPanel btnContainer = new JPanel(layout);
@@ -393,7 +404,7 @@ public class ProjectPanel extends JPanel {
         private static class ButtonPanel extends JPanel implements Project.StatusChangeListener {
             int x, y;
 
-            ButtonPanel(Project p) {
+            ButtonPanel(ProjectPanel owner, Project p) {
                 super(new GridBagLayout());
                 setBorder(BorderFactory.createEtchedBorder());
                 setPreferredSize(new Dimension(200, HEIGHT));
@@ -401,7 +412,7 @@ public class ProjectPanel extends JPanel {
                 addButton(new BtnBuild(p));
                 addButton(new BtnPush(p));
                 addButton(new BtnReboot(p));
-                addButton(new BtnLogcat(p));
+                addButton(new BtnLogcat(owner, p));
                 addButton(new BtnDevice(p));
             }
 
@@ -632,13 +643,15 @@ public class ProjectPanel extends JPanel {
         }
 
         static class BtnLogcat extends MenuButton {
-            BtnLogcat(Project p) {
+            BtnLogcat(ProjectPanel owner, Project p) {
                 super("Logcat", p, Project.STATUS_ONLINE);
                 for (LogAttr.LogSource logSrc : LogAttr.LogSource.values()) {
                     addMenuItem(logSrc.name, event -> new LogFrame(mProject.name
                             + " (log source:" + logSrc.name + ")")
                             .start(mProject.getDevice(), logSrc));
                 }
+                addMenuItem("all devices", event -> new LogFrame("All devices")
+                        .start(owner.getOnlineDevices(), LogAttr.LogSource.defaults));
             }
         }
 
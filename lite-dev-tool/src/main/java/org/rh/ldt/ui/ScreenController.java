@@ -22,8 +22,8 @@ import com.android.ddmlib.RawImage;
 
 import org.rh.ldt.DLog;
 import org.rh.ldt.util.AdbUtilEx;
-import org.rh.smaliex.AdbUtil;
 
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JMenuItem;
@@ -32,12 +32,16 @@ import javax.swing.JPopupMenu;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import javax.swing.Timer;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
 import java.awt.BorderLayout;
 import java.awt.Color;
-import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Graphics;
-import java.awt.Image;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
@@ -51,6 +55,7 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.concurrent.ExecutionException;
 
@@ -85,11 +90,17 @@ public class ScreenController implements ActionListener {
     private final Timer mTimer;
     private final Device mDevice;
     private BufferedImage mImage;
-    private int[] mScanline;
+    // Changed when the pixels of mImage are changed.
+    private volatile int mImageVersion;
+    private RawImage mRawImage;
+    private final FrameDiff mFrameDiff = new FrameDiff();
     private volatile boolean mIsLoading;
     private GetScreenshotTask mTask;
+    private ScreenStream mStream;
+    private final InputChannel mInput;
     private final JFrame mFrame;
     private final JPanel mPanel;
+    private final ScreenshotViewer mViewer;
 
     public ScreenController(Device device) {
         this(device, false);
@@ -97,6 +108,7 @@ public class ScreenController implements ActionListener {
 
     public ScreenController(Device device, boolean standalone) {
         mDevice = device;
+        mInput = new InputChannel(device);
         mTimer = new Timer(3000, this);
         mTimer.setInitialDelay(0);
         mTimer.setRepeats(true);
@@ -104,7 +116,8 @@ public class ScreenController implements ActionListener {
         mPanel = new JPanel();
         mPanel.setLayout(new BorderLayout());
         mPanel.setOpaque(false);
-        mPanel.add(new ScreenshotViewer());
+        mViewer = new ScreenshotViewer();
+        mPanel.add(mViewer);
 
         mFrame = new JFrame(device.getName());
         mFrame.getContentPane().add(mPanel);
@@ -127,13 +140,74 @@ public class ScreenController implements ActionListener {
 
     public void stop() {
         mTimer.stop();
+        mInput.stop();
+        if (mStream != null) {
+            mStream.stop();
+            mStream = null;
+        }
         mFrame.setVisible(false);
         mFrame.dispose();
     }
 
+    /**
+     * Shows the frames streamed from the device instead of polling the framebuffer.
+     * If the stream cannot be opened or breaks, polling is resumed.
+     */
+    public void startMirroring() {
+        if (mStream != null) {
+            return;
+        }
+        mTimer.stop();
+        final ScreenStream stream = new ScreenStream(mDevice, new ScreenStream.Listener() {
+            @Override
+            public void onFrame(BufferedImage image) {
+                SwingUtilities.invokeLater(() -> showFrame(image));
+            }
+
+            @Override
+            public void onStop(String reason) {
+                if (reason != null) {
+                    DLog.i(reason + ", fall back to polling");
+                    SwingUtilities.invokeLater(() -> stopMirroring());
+                }
+            }
+        });
+        mStream = stream;
+        stream.start();
+    }
+
+    public void stopMirroring() {
+        if (mStream == null) {
+            return;
+        }
+        mStream.stop();
+        mStream = null;
+        if (mFrame.isDisplayable()) {
+            mTimer.start();
+        }
+    }
+
+    public boolean isMirroring() {
+        return mStream != null;
+    }
+
+    private void showFrame(BufferedImage image) {
+        if (mStream == null || mIsLoading) {
+            return;
+        }
+        final boolean resize = mImage == null || image.getWidth() != mImage.getWidth()
+                || image.getHeight() != mImage.getHeight();
+        mImage = image;
+        mImageVersion++;
+        if (resize) {
+            mPanel.validate();
+        }
+        mPanel.repaint();
+    }
+
     @Override
     public void actionPerformed(ActionEvent e) {
-        if (mTask != null && !mTask.isDone()) {
+        if (mStream != null || mTask != null && !mTask.isDone()) {
             return;
         }
         mTask = new GetScreenshotTask();
@@ -141,6 +215,8 @@ public class ScreenController implements ActionListener {
     }
 
     private class GetScreenshotTask extends SwingWorker<Boolean, Void> {
+        // The changed areas of the image, null if all of it changed.
+        private ArrayList<Rectangle> mDirtyRects;
 
         private GetScreenshotTask() {
         }
@@ -151,7 +227,8 @@ public class ScreenController implements ActionListener {
             long s;
             try {
                 s = System.currentTimeMillis();
-                rawImage = RawImage.getFrameBuffer(AndroidDebugBridge.getSocketAddress(), mDevice);
+                rawImage = RawImage.getFrameBuffer(AndroidDebugBridge.getSocketAddress(),
+                        mDevice, mRawImage);
             } catch (IOException e) {
                 DLog.ex(e);
                 return false;
@@ -162,22 +239,32 @@ public class ScreenController implements ActionListener {
             try {
                 if (rawImage != null) {
                     if (mImage == null || rawImage.width != mImage.getWidth()
-                            || rawImage.height != mImage.getHeight()) {
+                            || rawImage.height != mImage.getHeight()
+                            || mImage.getType() != BufferedImage.TYPE_INT_ARGB) {
                         mImage = new BufferedImage(rawImage.width, rawImage.height,
                                 BufferedImage.TYPE_INT_ARGB);
-                        mScanline = new int[rawImage.width];
+                        mFrameDiff.reset();
                         resize = true;
                     }
 
+                    final int dirty = mFrameDiff.update(rawImage);
                     DLog.i("w=" + rawImage.width + " h=" + rawImage.height + " bpp=" + rawImage.bpp
-                        + " dur=" + (System.currentTimeMillis() - s) + "ms");
-                    switch (rawImage.bpp) {
-                    case 16:
-                        rawImage16toARGB(rawImage);
-                        break;
-                    case 32:
-                        rawImage32toARGB(rawImage);
-                        break;
+                        + " dur=" + (System.currentTimeMillis() - s) + "ms dirty=" + dirty
+                        + "/" + mFrameDiff.getTileCount());
+                    mRawImage = rawImage;
+                    if (rawImage.bpp != 16 && rawImage.bpp != 32) {
+                        return resize;
+                    }
+                    final int[] pixels = FrameDecoder.getPixels(mImage);
+                    if (dirty == mFrameDiff.getTileCount()) {
+                        FrameDecoder.decode(rawImage, pixels);
+                        mImageVersion++;
+                    } else {
+                        mDirtyRects = new ArrayList<>();
+                        mFrameDiff.getDirtyRects(mDirtyRects);
+                        for (Rectangle r : mDirtyRects) {
+                            FrameDecoder.decode(rawImage, pixels, r);
+                        }
                     }
                 }
             } finally {
@@ -187,82 +274,16 @@ public class ScreenController implements ActionListener {
             return resize;
         }
 
-        private int getMask(int length) {
-            int res = 0;
-            for (int i = 0; i < length; i++) {
-                res = (res << 1) + 1;
-            }
-
-            return res;
-        }
-
-        private void rawImage32toARGB(RawImage rawImage) {
-            byte[] buffer = rawImage.data;
-            int index = 0;
-
-            final int redOffset = rawImage.red_offset;
-            final int redLength = rawImage.red_length;
-            final int redMask = getMask(redLength);
-            final int greenOffset = rawImage.green_offset;
-            final int greenLength = rawImage.green_length;
-            final int greenMask = getMask(greenLength);
-            final int blueOffset = rawImage.blue_offset;
-            final int blueLength = rawImage.blue_length;
-            final int blueMask = getMask(blueLength);
-            final int alphaLength = rawImage.alpha_length;
-            final int alphaOffset = rawImage.alpha_offset;
-            final int alphaMask = getMask(alphaLength);
-
-            for (int y = 0; y < rawImage.height; y++) {
-                for (int x = 0; x < rawImage.width; x++) {
-                    int value = buffer[index++] & 0x00FF;
-                    value |= (buffer[index++] & 0x00FF) << 8;
-                    value |= (buffer[index++] & 0x00FF) << 16;
-                    value |= (buffer[index++] & 0x00FF) << 24;
-
-                    int r = ((value >>> redOffset) & redMask) << (8 - redLength);
-                    int g = ((value >>> greenOffset) & greenMask) << (8 - greenLength);
-                    int b = ((value >>> blueOffset) & blueMask) << (8 - blueLength);
-                    int a = 0xFF;
-
-                    if (alphaLength != 0) {
-                        a = ((value >>> alphaOffset) & alphaMask) << (8 - alphaLength);
-                    }
-
-                    mScanline[x] = a << 24 | r << 16 | g << 8 | b;
-                }
-
-                mImage.setRGB(0, y, rawImage.width, 1, mScanline,
-                        0, rawImage.width);
-            }
-        }
-
-        private void rawImage16toARGB(RawImage rawImage) {
-            byte[] buffer = rawImage.data;
-            int index = 0;
-
-            for (int y = 0; y < rawImage.height; y++) {
-                for (int x = 0; x < rawImage.width; x++) {
-                    int value = buffer[index++] & 0x00FF;
-                    value |= (buffer[index++] << 8) & 0x0FF00;
-
-                    int r = ((value >> 11) & 0x01F) << 3;
-                    int g = ((value >> 5) & 0x03F) << 2;
-                    int b = ((value) & 0x01F) << 3;
-
-                    mScanline[x] = 0xFF << 24 | r << 16 | g << 8 | b;
-                }
-
-                mImage.setRGB(0, y, rawImage.width, 1, mScanline,
-                        0, rawImage.width);
-            }
-        }
-
         @Override
         protected void done() {
             try {
                 if (get()) {
                     mPanel.validate();
+                } else if (mDirtyRects != null) {
+                    for (Rectangle r : mDirtyRects) {
+                        mViewer.repaintImage(r);
+                    }
+                    return;
                 }
             } catch (InterruptedException | ExecutionException e) {
                 e.printStackTrace();
@@ -277,9 +298,13 @@ public class ScreenController implements ActionListener {
 
         float ratioX;
         float ratioY;
-        long time;
-        private int mTouchStartX;
-        private int mTouchStartY;
+        // The image scaled to the size it was last drawn.
+        private BufferedImage mScaled;
+        private BufferedImage mScaledSource;
+        private int mScaledVersion;
+        // The areas of the image changed after it was scaled.
+        private final ArrayList<Rectangle> mScaledDirty = new ArrayList<>();
+        private boolean mTouching;
         private int cxr;
         private int cyr;
 
@@ -289,14 +314,35 @@ public class ScreenController implements ActionListener {
             ActionListener l = e -> shellCmd("input keyevent 26");
             mi.addActionListener(l);
             menu.add(mi);
+            final JCheckBoxMenuItem mirror = new JCheckBoxMenuItem("mirror screen");
+            mirror.addActionListener(e -> {
+                if (mirror.isSelected()) {
+                    startMirroring();
+                } else {
+                    stopMirroring();
+                }
+            });
+            menu.addPopupMenuListener(new PopupMenuListener() {
+                @Override
+                public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+                    mirror.setSelected(isMirroring());
+                }
+
+                @Override
+                public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+                }
+
+                @Override
+                public void popupMenuCanceled(PopupMenuEvent e) {
+                }
+            });
+            menu.add(mirror);
         }
 
         void shellCmd(String cmd) {
-            System.out.println(cmd);
-            AdbUtil.shell(mDevice, cmd);
-            System.out.println("end " + cmd);
+            mInput.command(cmd);
         }
-        
+
         InputStateController controller = new InputStateController() {
 
             @Override
@@ -304,14 +350,7 @@ public class ScreenController implements ActionListener {
                
                 if (e.getButton() == MouseEvent.BUTTON3) {
                     menu.show(mPanel, e.getX(), e.getY());
-                    return;
                 }
-                if (mImage == null) {
-                    return;
-                }
-                int x = x(e.getX());
-                int y = y(e.getY());
-                shellCmd("input tap " + x + " " + y);
             }
 
             @Override
@@ -325,31 +364,30 @@ public class ScreenController implements ActionListener {
             @Override
             public void mousePressed(MouseEvent e) {
                 super.mousePressed(e);
-                mTouchStartX = x(e.getX());
-                mTouchStartY = y(e.getY());
-                time = System.currentTimeMillis();
+                final BufferedImage image = mImage;
+                if (e.getButton() != MouseEvent.BUTTON1 || image == null) {
+                    return;
+                }
+                mTouching = true;
+                mInput.setScreenSize(image.getWidth(), image.getHeight());
+                mInput.touchDown(x(e.getX()), y(e.getY()));
             }
 
             @Override
             public void mouseReleased(MouseEvent e) {
                 super.mouseReleased(e);
-                int x = x(e.getX());
-                int y = y(e.getY());
-                if (Math.abs(mTouchStartX - x) < 5 && Math.abs(mTouchStartY - y) < 5) {
-                    return;
+                if (mTouching && e.getButton() == MouseEvent.BUTTON1) {
+                    mTouching = false;
+                    mInput.touchUp(x(e.getX()), y(e.getY()));
                 }
-                long dur = System.currentTimeMillis() - time;
-                String cmd = String.format("input swipe %d %d %d %d %d",
-                                mTouchStartX, mTouchStartY, x, y, dur);
-                shellCmd(cmd);
             }
 
             @Override
             public void mouseDragged(MouseEvent e) {
                 super.mouseDragged(e);
-                //int x = x(e.getX());
-                //int y = y(e.getY());
-                //LLog.i("mouseDragged " + x + " " + y);
+                if (mTouching) {
+                    mInput.touchMove(x(e.getX()), y(e.getY()));
+                }
             }
 
         };
@@ -366,6 +404,27 @@ public class ScreenController implements ActionListener {
             return (int) (ratioX * x);
         }
 
+        void repaintImage(Rectangle r) {
+            final BufferedImage image = mImage;
+            if (image == null) {
+                return;
+            }
+            final int w = image.getWidth();
+            final int h = image.getHeight();
+            final Rectangle b = getScaledBounds(w, h, getWidth(), getHeight());
+            if (mScaledDirty.size() < 64) {
+                mScaledDirty.add(r);
+            } else {
+                mScaledSource = null;
+            }
+            final int x1 = b.x + (int) ((long) r.x * b.width / w);
+            final int y1 = b.y + (int) ((long) r.y * b.height / h);
+            final int x2 = b.x + (int) (((long) (r.x + r.width) * b.width + w - 1) / w);
+            final int y2 = b.y + (int) (((long) (r.y + r.height) * b.height + h - 1) / h);
+            // One more pixel for the filtering of the scaled edges.
+            repaint(x1 - 1, y1 - 1, x2 - x1 + 2, y2 - y1 + 2);
+        }
+
         public int y(int y) {
             return (int) (ratioY * y);
         }
@@ -382,13 +441,63 @@ public class ScreenController implements ActionListener {
             if (mImage != null) {
                 ratioX = (float) mImage.getWidth() / (float) getWidth();
                 ratioY = (float) mImage.getHeight() / (float) getHeight();
-                //g.drawImage(image, 0, 0, null);
-                drawScaledImage(mImage, this, g);
+                drawCachedImage(mImage, g);
             }
             g.setColor(Color.RED);
             g.drawString("x=" + x(cxr) + "y=" + y(cyr), cxr - 10, cyr);
         }
 
+        // Scales the image once per change of the image or the size of the viewer,
+        // so repaints for the cursor only copy the scaled image. If only some areas of
+        // the image changed, only those areas are scaled again.
+        private void drawCachedImage(BufferedImage image, Graphics g) {
+            final int w = image.getWidth();
+            final int h = image.getHeight();
+            final Rectangle b = getScaledBounds(w, h, getWidth(), getHeight());
+            if (b.width <= 0 || b.height <= 0 || b.width == w && b.height == h) {
+                mScaledDirty.clear();
+                g.drawImage(image, b.x, b.y, null);
+                return;
+            }
+            final int version = mImageVersion;
+            if (mScaled == null || mScaled.getWidth() != b.width
+                    || mScaled.getHeight() != b.height) {
+                final GraphicsConfiguration gc = getGraphicsConfiguration();
+                mScaled = gc != null ? gc.createCompatibleImage(b.width, b.height)
+                        : new BufferedImage(b.width, b.height, BufferedImage.TYPE_INT_RGB);
+                mScaledSource = null;
+            }
+            if (mScaledSource != image || mScaledVersion != version) {
+                scaleImage(image, new Rectangle(0, 0, b.width, b.height));
+                mScaledSource = image;
+                mScaledVersion = version;
+            } else {
+                for (Rectangle r : mScaledDirty) {
+                    final int x1 = (int) ((long) r.x * b.width / w);
+                    final int y1 = (int) ((long) r.y * b.height / h);
+                    final int x2 = (int) (((long) (r.x + r.width) * b.width + w - 1) / w);
+                    final int y2 = (int) (((long) (r.y + r.height) * b.height + h - 1) / h);
+                    // One more pixel for the filtering of the scaled edges.
+                    scaleImage(image, new Rectangle(x1 - 1, y1 - 1, x2 - x1 + 2, y2 - y1 + 2));
+                }
+            }
+            mScaledDirty.clear();
+            g.drawImage(mScaled, b.x, b.y, null);
+        }
+
+        // Draws the area of the scaled image, the clip keeps the pixels the same as a
+        // full scale while only the area is filtered.
+        private void scaleImage(BufferedImage image, Rectangle area) {
+            final Graphics2D sg = mScaled.createGraphics();
+            sg.clip(area);
+            sg.setColor(Color.BLACK);
+            sg.fillRect(0, 0, mScaled.getWidth(), mScaled.getHeight());
+            sg.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            sg.drawImage(image, 0, 0, mScaled.getWidth(), mScaled.getHeight(), null);
+            sg.dispose();
+        }
+
         @Override
         public Dimension getPreferredSize() {
             if (mImage == null) {
@@ -398,15 +507,13 @@ public class ScreenController implements ActionListener {
         }
     }
 
-    public static void drawScaledImage(Image image, Component canvas, Graphics g) {
-        int imgWidth = image.getWidth(null);
-        int imgHeight = image.getHeight(null);
-
+    /**
+     * Returns where an image of the size is drawn in the canvas keeping its aspect ratio.
+     */
+    public static Rectangle getScaledBounds(int imgWidth, int imgHeight,
+                                            int canvasWidth, int canvasHeight) {
         float imgAspect = (float) imgHeight / imgWidth;
 
-        int canvasWidth = canvas.getWidth();
-        int canvasHeight = canvas.getHeight();
-
         float canvasAspect = (float) canvasHeight / canvasWidth;
 
         int x1 = 0; // top left X position
@@ -437,7 +544,7 @@ public class ScreenController implements ActionListener {
             y2 = canvasHeight + y1;
         }
 
-        g.drawImage(image, x1, y1, x2, y2, 0, 0, imgWidth, imgHeight, null);
+        return new Rectangle(x1, y1, x2 - x1, y2 - y1);
     }
 
 
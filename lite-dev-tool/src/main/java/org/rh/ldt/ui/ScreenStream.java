@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.ldt.ui;
+
+import com.android.ddmlib.AdbHelper;
+import com.android.ddmlib.AdbHelperEx;
+import com.android.ddmlib.Device;
+
+import org.rh.ldt.DLog;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Continuous screen capture of a device. The device runs screencap -p in a loop and
+ * writes the PNG frames to an exec service socket. One thread splits the stream into
+ * frames and another decodes them. When the decoder is behind, only the newest frame
+ * is kept, so the shown frame is never older than one frame plus the decoding.
+ */
+final class ScreenStream {
+    private static final String COMMAND =
+            "exec:sh -c 'while true; do screencap -p || exit 1; done'";
+    private static final byte[] PNG_SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+    private static final int IEND = 0x49454e44;
+    private static final int MAX_CHUNK = 64 << 20;
+
+    interface Listener {
+        /**
+         * Called on the decoder thread with the newest frame.
+         */
+        void onFrame(BufferedImage image);
+
+        /**
+         * Called once when the stream ends, reason is null if it was stopped.
+         */
+        void onStop(String reason);
+    }
+
+    private static final class Frame {
+        byte[] data = new byte[1 << 20];
+        int length;
+
+        void append(byte[] a, int offset, int len) {
+            ensure(len);
+            System.arraycopy(a, offset, data, length, len);
+            length += len;
+        }
+
+        void ensure(int more) {
+            if (length + more > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + more));
+            }
+        }
+    }
+
+    private final Device mDevice;
+    private final Listener mListener;
+    private final Object mLock = new Object();
+    private Frame mPending;
+    private Frame mFree;
+    private volatile boolean mStopped;
+    private volatile SocketChannel mChannel;
+    private Thread mReader;
+    private Thread mDecoder;
+    private int mFrames;
+    private int mDropped;
+
+    ScreenStream(Device device, Listener listener) {
+        mDevice = device;
+        mListener = listener;
+    }
+
+    void start() {
+        final String name = "ScreenStream-" + mDevice.getSerialNumber();
+        mReader = new Thread(this::read, name + "-reader");
+        mDecoder = new Thread(this::decode, name + "-decoder");
+        mReader.setDaemon(true);
+        mDecoder.setDaemon(true);
+        mDecoder.start();
+        mReader.start();
+    }
+
+    void stop() {
+        mStopped = true;
+        closeChannel();
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    boolean isStopped() {
+        return mStopped;
+    }
+
+    private void closeChannel() {
+        final SocketChannel channel = mChannel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void read() {
+        String reason = null;
+        try {
+            mChannel = AdbHelperEx.openService(mDevice, COMMAND);
+            if (mStopped) {
+                closeChannel();
+            }
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(mChannel), 1 << 16));
+            Frame frame = new Frame();
+            while (!mStopped) {
+                frame.length = 0;
+                readFrame(in, frame);
+                frame = publish(frame);
+            }
+        } catch (EOFException e) {
+            reason = "Screen stream ended";
+        } catch (AdbHelper.AdbCommandRejectedException e) {
+            reason = "Screen stream is not supported: " + e.getMessage();
+        } catch (AdbHelper.TimeoutException e) {
+            reason = "Screen stream timed out";
+        } catch (IOException e) {
+            reason = "Screen stream error: " + e.getMessage();
+        } finally {
+            closeChannel();
+            final boolean stopped = mStopped;
+            stop();
+            DLog.i("Screen stream of " + mDevice.getName() + " ended, frames=" + mFrames
+                    + " dropped=" + mDropped);
+            mListener.onStop(stopped ? null : reason);
+        }
+    }
+
+    // Skips to the next PNG signature and reads the chunks until IEND.
+    private static void readFrame(DataInputStream in, Frame frame) throws IOException {
+        int matched = 0;
+        while (matched < PNG_SIGNATURE.length) {
+            final int b = in.readUnsignedByte();
+            if (b == (PNG_SIGNATURE[matched] & 0xff)) {
+                matched++;
+            } else {
+                matched = b == (PNG_SIGNATURE[0] & 0xff) ? 1 : 0;
+            }
+        }
+        frame.append(PNG_SIGNATURE, 0, PNG_SIGNATURE.length);
+        while (true) {
+            final int length = in.readInt();
+            final int type = in.readInt();
+            if (length < 0 || length > MAX_CHUNK) {
+                throw new IOException("Bad PNG chunk length " + length);
+            }
+            // Length, type, data and crc.
+            frame.ensure(length + 12);
+            final byte[] d = frame.data;
+            int p = frame.length;
+            d[p++] = (byte) (length >>> 24);
+            d[p++] = (byte) (length >>> 16);
+            d[p++] = (byte) (length >>> 8);
+            d[p++] = (byte) length;
+            d[p++] = (byte) (type >>> 24);
+            d[p++] = (byte) (type >>> 16);
+            d[p++] = (byte) (type >>> 8);
+            d[p++] = (byte) type;
+            in.readFully(d, p, length + 4);
+            frame.length = p + length + 4;
+            if (type == IEND) {
+                return;
+            }
+        }
+    }
+
+    // Hands the frame to the decoder and returns a frame to fill next.
+    private Frame publish(Frame frame) {
+        synchronized (mLock) {
+            mFrames++;
+            Frame next = mPending;
+            if (next != null) {
+                mDropped++;
+            } else {
+                next = mFree;
+                mFree = null;
+            }
+            mPending = frame;
+            mLock.notifyAll();
+            return next != null ? next : new Frame();
+        }
+    }
+
+    private void decode() {
+        while (true) {
+            final Frame frame;
+            synchronized (mLock) {
+                while (mPending == null && !mStopped) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mStopped) {
+                    return;
+                }
+                frame = mPending;
+                mPending = null;
+            }
+            try {
+                final BufferedImage image = ImageIO.read(
+                        new ByteArrayInputStream(frame.data, 0, frame.length));
+                if (image != null && !mStopped) {
+                    mListener.onFrame(image);
+                }
+            } catch (IOException e) {
+                DLog.ex(e);
+            }
+            synchronized (mLock) {
+                mFree = frame;
+            }
+        }
+    }
+}
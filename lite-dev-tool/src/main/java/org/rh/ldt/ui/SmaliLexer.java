@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rh.ldt.ui;
+
+import org.jf.dexlib2.Opcode;
+
+/**
+ * Line based tokenizer for smali syntax highlighting. It works on char arrays
+ * (e.g. from a Segment) and does not allocate while scanning.
+ */
+final class SmaliLexer {
+    static final int STYLE_DEFAULT = 0;
+    static final int STYLE_DIRECTIVE = 1;
+    static final int STYLE_INSTRUCTION = 2;
+    static final int STYLE_MODIFIER = 3;
+    static final int STYLE_COMMENT = 4;
+    static final int STYLE_STRING = 5;
+    static final int STYLE_COUNT = 6;
+
+    interface TokenHandler {
+        void onToken(int offset, int length, int style);
+    }
+
+    private static final boolean[] DELIMITERS = new boolean[128];
+    private static final KeywordTable KEYWORDS;
+
+    static {
+        for (char c : ";:{}()[]+-/%<=>!&|^~*,".toCharArray()) {
+            DELIMITERS[c] = true;
+        }
+        final String[] directives = (".method .annotation .end .line .prologue .implements"
+                + " .super .class .source .locals .parameter .field .local .restart").split(" ");
+        final Opcode[] opcodes = Opcode.values();
+        final String[] modifiers = ("public annotation method protected static final field"
+                + " private synthetic local").split(" ");
+        KEYWORDS = new KeywordTable(directives.length + opcodes.length + modifiers.length);
+        for (String k : directives) {
+            KEYWORDS.put(k, STYLE_DIRECTIVE);
+        }
+        for (Opcode op : opcodes) {
+            KEYWORDS.put(op.name, STYLE_INSTRUCTION);
+        }
+        for (String k : modifiers) {
+            KEYWORDS.put(k, STYLE_MODIFIER);
+        }
+    }
+
+    private SmaliLexer() {
+    }
+
+    static boolean isDelimiter(char c) {
+        return c < 128 ? (DELIMITERS[c] || c <= ' ') : Character.isWhitespace(c);
+    }
+
+    /**
+     * Scans one line a[start, end) which should not contain the line separator.
+     * The reported offsets are based on docOffset which is the position of a[start].
+     * Only the tokens which have a style other than STYLE_DEFAULT are reported.
+     */
+    static void scanLine(char[] a, int start, int end, int docOffset, TokenHandler handler) {
+        final int base = docOffset - start;
+        int i = start;
+        while (i < end) {
+            final char c = a[i];
+            if (c == '#') {
+                handler.onToken(base + i, end - i, STYLE_COMMENT);
+                return;
+            }
+            if (c == '"' || c == '\'') {
+                int j = i + 1;
+                while (j < end && a[j] != c) {
+                    if (a[j] == '\\') {
+                        j++;
+                    }
+                    j++;
+                }
+                if (j >= end) {
+                    j = end - 1;
+                }
+                handler.onToken(base + i, j - i + 1, STYLE_STRING);
+                i = j + 1;
+                continue;
+            }
+            if (isDelimiter(c)) {
+                i++;
+                continue;
+            }
+            int j = i + 1;
+            for (; j < end; j++) {
+                final char t = a[j];
+                // '-' and '/' are parts of instruction names, e.g. "const/4", "invoke-virtual".
+                if (t == '"' || t == '\'' || t == '#'
+                        || (t != '-' && t != '/' && isDelimiter(t))) {
+                    break;
+                }
+            }
+            final int style = KEYWORDS.get(a, i, j - i);
+            if (style != STYLE_DEFAULT) {
+                handler.onToken(base + i, j - i, style);
+            }
+            i = j;
+        }
+    }
+
+    // Open addressing table from keyword to style, looked up directly with char ranges.
+    private static final class KeywordTable {
+        private final char[][] mKeys;
+        private final byte[] mStyles;
+        private final int mMask;
+
+        KeywordTable(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 4 - 1);
+            mKeys = new char[capacity][];
+            mStyles = new byte[capacity];
+            mMask = capacity - 1;
+        }
+
+        private static int hash(char[] a, int offset, int length) {
+            int h = 0;
+            for (int i = offset, end = offset + length; i < end; i++) {
+                h = 31 * h + a[i];
+            }
+            return h ^ (h >>> 16);
+        }
+
+        void put(String key, int style) {
+            final char[] k = key.toCharArray();
+            int idx = hash(k, 0, k.length) & mMask;
+            while (mKeys[idx] != null && !matches(mKeys[idx], k, 0, k.length)) {
+                idx = (idx + 1) & mMask;
+            }
+            mKeys[idx] = k;
+            mStyles[idx] = (byte) style;
+        }
+
+        int get(char[] a, int offset, int length) {
+            int idx = hash(a, offset, length) & mMask;
+            char[] k;
+            while ((k = mKeys[idx]) != null) {
+                if (matches(k, a, offset, length)) {
+                    return mStyles[idx];
+                }
+                idx = (idx + 1) & mMask;
+            }
+            return STYLE_DEFAULT;
+        }
+
+        private static boolean matches(char[] key, char[] a, int offset, int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key[i] != a[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rh.ldt.ui;
+
+import org.rh.ldt.util.IntArray;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import javax.swing.text.EditorKit;
+import javax.swing.text.Element;
+import javax.swing.text.PlainView;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.Utilities;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+import javax.swing.undo.UndoableEdit;
+import java.awt.Color;
+import java.awt.Graphics;
+
+/**
+ * Read-only document for browsing smali. The text is kept in one char array with
+ * a table of line starts, and the line elements are created on demand. An edit is
+ * not applied but passed to the EditListener, which should switch to an editable
+ * document.
+ */
+class SmaliTextDocument extends AbstractDocument {
+
+    interface EditListener {
+        void onEdit(SmaliTextDocument doc, int offset, int removeLength, String insert)
+                throws BadLocationException;
+    }
+
+    private final char[] mChars;
+    private final int[] mLineStarts;
+    private final Element mRoot = new RootElement();
+    private EditListener mEditListener;
+
+    SmaliTextDocument(String text) {
+        this(new CharArrayContent(text.toCharArray()));
+    }
+
+    private SmaliTextDocument(CharArrayContent content) {
+        super(content);
+        mChars = content.mChars;
+        final IntArray lineStarts = new IntArray(mChars.length / 32 + 1);
+        lineStarts.add(0);
+        for (int i = 0; i < mChars.length; i++) {
+            if (mChars[i] == '\n') {
+                lineStarts.add(i + 1);
+            }
+        }
+        mLineStarts = lineStarts.toArray();
+        putProperty(DefaultEditorKit.EndOfLineStringProperty, "\n");
+    }
+
+    void setEditListener(EditListener listener) {
+        mEditListener = listener;
+    }
+
+    char[] getChars() {
+        return mChars;
+    }
+
+    int getLineIndex(int offset) {
+        int low = 0;
+        int high = mLineStarts.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (mLineStarts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    int getLineStart(int line) {
+        return mLineStarts[line];
+    }
+
+    // The end offset includes the line separator, the last line ends after the implicit one.
+    int getLineEnd(int line) {
+        return line + 1 < mLineStarts.length ? mLineStarts[line + 1] : mChars.length + 1;
+    }
+
+    @Override
+    public Element getDefaultRootElement() {
+        return mRoot;
+    }
+
+    @Override
+    public Element getParagraphElement(int pos) {
+        return mRoot.getElement(mRoot.getElementIndex(pos));
+    }
+
+    @Override
+    public void insertString(int offs, String str, AttributeSet a) throws BadLocationException {
+        if (str != null && str.length() > 0) {
+            replace(offs, 0, str, a);
+        }
+    }
+
+    @Override
+    public void remove(int offs, int len) throws BadLocationException {
+        if (len > 0) {
+            replace(offs, len, null, null);
+        }
+    }
+
+    @Override
+    public void replace(int offset, int length, String text, AttributeSet attrs)
+            throws BadLocationException {
+        if (offset < 0 || length < 0 || offset + length > getLength()) {
+            throw new BadLocationException("Invalid edit", offset);
+        }
+        if (mEditListener != null) {
+            mEditListener.onEdit(this, offset, length,
+                    text == null || text.length() == 0 ? null : text);
+        }
+    }
+
+    private final class RootElement implements Element {
+        @Override
+        public Document getDocument() {
+            return SmaliTextDocument.this;
+        }
+
+        @Override
+        public Element getParentElement() {
+            return null;
+        }
+
+        @Override
+        public String getName() {
+            return SectionElementName;
+        }
+
+        @Override
+        public AttributeSet getAttributes() {
+            return SimpleAttributeSet.EMPTY;
+        }
+
+        @Override
+        public int getStartOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getEndOffset() {
+            return mChars.length + 1;
+        }
+
+        @Override
+        public int getElementIndex(int offset) {
+            return getLineIndex(offset);
+        }
+
+        @Override
+        public int getElementCount() {
+            return mLineStarts.length;
+        }
+
+        @Override
+        public Element getElement(int index) {
+            return index >= 0 && index < mLineStarts.length ? new LineElement(index) : null;
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return false;
+        }
+    }
+
+    private final class LineElement implements Element {
+        final int mLine;
+
+        LineElement(int line) {
+            mLine = line;
+        }
+
+        @Override
+        public Document getDocument() {
+            return SmaliTextDocument.this;
+        }
+
+        @Override
+        public Element getParentElement() {
+            return mRoot;
+        }
+
+        @Override
+        public String getName() {
+            return ParagraphElementName;
+        }
+
+        @Override
+        public AttributeSet getAttributes() {
+            return SimpleAttributeSet.EMPTY;
+        }
+
+        @Override
+        public int getStartOffset() {
+            return mLineStarts[mLine];
+        }
+
+        @Override
+        public int getEndOffset() {
+            return getLineEnd(mLine);
+        }
+
+        @Override
+        public int getElementIndex(int offset) {
+            return -1;
+        }
+
+        @Override
+        public int getElementCount() {
+            return 0;
+        }
+
+        @Override
+        public Element getElement(int index) {
+            return null;
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LineElement && ((LineElement) o).mLine == mLine
+                    && ((LineElement) o).getDocument() == getDocument();
+        }
+
+        @Override
+        public int hashCode() {
+            return mLine;
+        }
+    }
+
+    // Immutable content, so positions never move.
+    private static final class CharArrayContent implements Content {
+        final char[] mChars;
+
+        CharArrayContent(char[] chars) {
+            mChars = chars;
+        }
+
+        @Override
+        public Position createPosition(final int offset) throws BadLocationException {
+            if (offset < 0 || offset > length()) {
+                throw new BadLocationException("Invalid position", offset);
+            }
+            return () -> offset;
+        }
+
+        @Override
+        public int length() {
+            return mChars.length + 1;
+        }
+
+        @Override
+        public UndoableEdit insertString(int where, String str) throws BadLocationException {
+            throw new BadLocationException("Read-only content", where);
+        }
+
+        @Override
+        public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+            throw new BadLocationException("Read-only content", where);
+        }
+
+        @Override
+        public String getString(int where, int len) throws BadLocationException {
+            final Segment s = new Segment();
+            getChars(where, len, s);
+            return new String(s.array, s.offset, s.count);
+        }
+
+        @Override
+        public void getChars(int where, int len, Segment txt) throws BadLocationException {
+            if (where < 0 || len < 0 || where + len > length()) {
+                throw new BadLocationException("Invalid range", where);
+            }
+            if (where + len <= mChars.length) {
+                txt.array = mChars;
+                txt.offset = where;
+            } else {
+                // The range includes the implicit line separator at the end.
+                txt.array = new char[len];
+                System.arraycopy(mChars, where, txt.array, 0, len - 1);
+                txt.array[len - 1] = '\n';
+                txt.offset = 0;
+            }
+            txt.count = len;
+        }
+    }
+}
+
+/**
+ * Paints only the visible lines of a SmaliTextDocument and colors the tokens while
+ * painting, so no style information is stored.
+ */
+class SmaliTextView extends PlainView {
+    private final Segment mSegment = new Segment();
+    private final IntArray mTokens = new IntArray(64);
+    private final SmaliLexer.TokenHandler mCollector = (offset, length, style) -> {
+        mTokens.add(offset);
+        mTokens.add(offset + length);
+        mTokens.add(style);
+    };
+
+    SmaliTextView(Element elem) {
+        super(elem);
+    }
+
+    @Override
+    protected int drawUnselectedText(Graphics g, int x, int y, int p0, int p1)
+            throws BadLocationException {
+        final SmaliTextDocument doc = (SmaliTextDocument) getDocument();
+        final int line = doc.getLineIndex(p0);
+        final int lineStart = doc.getLineStart(line);
+        final int lineEnd = Math.min(doc.getLineEnd(line), doc.getLength());
+        final Color defaultColor = getContainer().isEnabled()
+                ? getContainer().getForeground() : Color.GRAY;
+        mTokens.clear();
+        // Tokenize the whole line because p0 may be in the middle of a token.
+        SmaliLexer.scanLine(doc.getChars(), lineStart, lineEnd, lineStart, mCollector);
+        int pos = p0;
+        for (int i = 0; i < mTokens.size() && pos < p1; i += 3) {
+            final int start = Math.max(mTokens.get(i), pos);
+            final int end = Math.min(mTokens.get(i + 1), p1);
+            if (end <= start) {
+                continue;
+            }
+            if (start > pos) {
+                x = drawRange(doc, g, x, y, pos, start, defaultColor);
+            }
+            x = drawRange(doc, g, x, y, start, end, SmaliDocument.TOKEN_COLORS[mTokens.get(i + 2)]);
+            pos = end;
+        }
+        if (pos < p1) {
+            x = drawRange(doc, g, x, y, pos, p1, defaultColor);
+        }
+        return x;
+    }
+
+    private int drawRange(SmaliTextDocument doc, Graphics g, int x, int y,
+                          int p0, int p1, Color c) throws BadLocationException {
+        g.setColor(c);
+        doc.getText(p0, p1 - p0, mSegment);
+        return Utilities.drawTabbedText(mSegment, x, y, g, this, p0);
+    }
+}
+
+/**
+ * Editor kit of the read-only smali view. The editable kit is used when the user
+ * starts to edit.
+ */
+class SmaliTextEditorKit extends DefaultEditorKit implements ViewFactory {
+    private final EditorKit mEditableKit;
+
+    SmaliTextEditorKit(EditorKit editableKit) {
+        mEditableKit = editableKit;
+    }
+
+    EditorKit getEditableKit() {
+        return mEditableKit;
+    }
+
+    @Override
+    public ViewFactory getViewFactory() {
+        return this;
+    }
+
+    @Override
+    public View create(Element elem) {
+        return new SmaliTextView(elem);
+    }
+
+    @Override
+    public Document createDefaultDocument() {
+        return new SmaliTextDocument("");
+    }
+}
@@ -16,9 +16,10 @@
 
 package org.rh.ldt.ui;
 
-import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.iface.ClassDef;
+import org.rh.ldt.DLog;
 import org.rh.ldt.util.DexUtilEx;
+import org.rh.ldt.util.IntArray;
 import org.rh.ldt.util.SmaliUtil;
 import org.rh.smaliex.LLog;
 
@@ -33,18 +34,20 @@ import javax.swing.JButton;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
-import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTabbedPane;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.UndoableEditEvent;
 import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultStyledDocument;
 import javax.swing.text.Document;
 import javax.swing.text.EditorKit;
 import javax.swing.text.Element;
-import javax.swing.text.MutableAttributeSet;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.Segment;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyledEditorKit;
@@ -78,7 +81,9 @@ import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 class SmaliViewer extends JFrame {
     private static final Icon CLOSE_TAB_ICON_R =
@@ -98,6 +103,7 @@ class SmaliViewer extends JFrame {
             return new SmaliDocument();
         }
     };
+    private static final EditorKit sReadOnlyEditorKit = new SmaliTextEditorKit(sStyledEditorKit);
 
     SmaliViewer() {
         setTitle("Smali Viewer");
@@ -112,7 +118,7 @@ class SmaliViewer extends JFrame {
         });
     }
 
-    public void open(final NodeClass cls, final NodeDex dex) {
+    public void open(final NodeClass cls, final NodeDex dex, final String content) {
         String title = cls.toTitle();
         for (int i = mTabPane.getTabCount() - 1; i >=0 ; i--) {
             if (mTabPane.getTitleAt(i).equals(title)) {
@@ -125,18 +131,7 @@ class SmaliViewer extends JFrame {
                 setVisible(false);
             }
         };
-        EditorKit editorKit = sStyledEditorKit;
-        if (cls.smaliContent.length() > 200000) {
-            int sel = JOptionPane.showConfirmDialog(null,
-                    "The content is big. Do you still want to apply syntax highlight?");
-            if (sel == JOptionPane.NO_OPTION) {
-                editorKit = null;
-            } else if (sel != JOptionPane.OK_OPTION) {
-                return;
-            }
-        }
-
-        final ViewerPanel vp = new ViewerPanel(editorKit, null, cls.smaliContent);
+        final ViewerPanel vp = new ViewerPanel(sReadOnlyEditorKit, null, content);
         vp.setOnSaveAction(() -> {
             ClassDef clsDef = SmaliUtil.assembleSmali(
                     vp.getText(), cls.classDef.dexFile.getOpcodes().api);
@@ -233,179 +228,249 @@ class SmaliViewer extends JFrame {
 // http://www.dound.com/src/MultiSyntaxDocument.java
 class SmaliDocument extends DefaultStyledDocument {
 
-    private static final HashMap<String, MutableAttributeSet> keywords;
-    private static final SimpleAttributeSet STYLE_DEFAULT;
-    private static final SimpleAttributeSet STYLE_COMMENT;
-    private static final SimpleAttributeSet STYLE_STRING;
-    private Element rootElement;
+    static final Color[] TOKEN_COLORS = new Color[SmaliLexer.STYLE_COUNT];
+    private static final SimpleAttributeSet[] STYLES = new SimpleAttributeSet[SmaliLexer.STYLE_COUNT];
+    private static final int RUNS_PER_CHUNK = 1024;
+    private static final long APPLY_BATCH_NANOS = 8 * 1000 * 1000;
+    private static ExecutorService sTokenizer;
+    private final Element mRootElement;
+    private final Segment mSegment = new Segment();
+    private final SmaliLexer.TokenHandler mStyleApplier = (offset, length, style) ->
+            setCharacterAttributes(offset, length, STYLES[style], false);
+    private final Timer mRestartTimer;
+    private volatile int mHighlightGeneration;
+    private boolean mBackgroundHighlighting;
+    private boolean mHighlightSuspended;
+    private boolean mApplyingStyles;
+    private JTextComponent mView;
 
     static {
-        keywords = new HashMap<>();
-        String[] kw = (".method .annotation .end .line .prologue .implements .super .class .source "
-                + ".locals .parameter .field .local .restart").split(" ");
-        initStyle(kw, new Color(30, 60, 190));
-        Opcode[] opcodes = Opcode.values();
-        String[] instr = new String[opcodes.length];
-        for (int i = 0; i < opcodes.length; i++) {
-            instr[i] = opcodes[i].name;
+        TOKEN_COLORS[SmaliLexer.STYLE_DEFAULT] = Color.BLACK;
+        TOKEN_COLORS[SmaliLexer.STYLE_DIRECTIVE] = new Color(30, 60, 190);
+        TOKEN_COLORS[SmaliLexer.STYLE_INSTRUCTION] = new Color(140, 110, 40);
+        TOKEN_COLORS[SmaliLexer.STYLE_MODIFIER] = new Color(90, 20, 120);
+        TOKEN_COLORS[SmaliLexer.STYLE_COMMENT] = new Color(51, 102, 0);
+        TOKEN_COLORS[SmaliLexer.STYLE_STRING] = new Color(153, 0, 107);
+        for (int i = 0; i < STYLES.length; i++) {
+            STYLES[i] = createStyle(TOKEN_COLORS[i], i == SmaliLexer.STYLE_DIRECTIVE
+                    || i == SmaliLexer.STYLE_INSTRUCTION || i == SmaliLexer.STYLE_MODIFIER);
         }
-
-        initStyle(instr, new Color(140, 110, 40));
-        String[] acc = "public annotation method protected static final field private synthetic local".split(" ");
-        initStyle(acc, new Color(90, 20, 120));
-
-        STYLE_DEFAULT = new SimpleAttributeSet();
-		StyleConstants.setForeground(STYLE_DEFAULT, Color.BLACK);
-
-        STYLE_COMMENT = new SimpleAttributeSet();
-        StyleConstants.setForeground(STYLE_COMMENT, new Color(51, 102, 0));
-
-        STYLE_STRING = new SimpleAttributeSet();
-        StyleConstants.setForeground(STYLE_STRING, new Color(153, 0, 107));
     }
 
-    private static void initStyle(String[] kws, Color c) {
+    private static SimpleAttributeSet createStyle(Color c, boolean bold) {
         SimpleAttributeSet sas = new SimpleAttributeSet();
         StyleConstants.setForeground(sas, c);
-        StyleConstants.setBold(sas, true);
-        for (String k : kws) {
-			keywords.put(k, sas);
-		}
+        if (bold) {
+            StyleConstants.setBold(sas, true);
+        }
+        return sas;
+    }
+
+    private static synchronized ExecutorService getTokenizer() {
+        if (sTokenizer == null) {
+            sTokenizer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "SmaliTokenizer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return sTokenizer;
     }
 
     SmaliDocument() {
-        rootElement = getDefaultRootElement();
+        mRootElement = getDefaultRootElement();
         putProperty(javax.swing.text.DefaultEditorKit.EndOfLineStringProperty, "\n");
+        mRestartTimer = new Timer(300, e -> {
+            try {
+                startHighlight(getText(0, getLength()), ++mHighlightGeneration);
+            } catch (BadLocationException ex) {
+                DLog.ex(ex);
+            }
+        });
+        mRestartTimer.setRepeats(false);
+    }
+
+    /**
+     * Replaces the content with a single insert and highlights it in background.
+     * The region visible in the view is styled first. Must be called on the EDT.
+     */
+    void load(String text, JTextComponent view) {
+        mView = view;
+        mHighlightSuspended = true;
+        try {
+            remove(0, getLength());
+            insertString(0, text, null);
+        } catch (BadLocationException e) {
+            DLog.ex(e);
+        } finally {
+            mHighlightSuspended = false;
+        }
+        mRestartTimer.stop();
+        startHighlight(text, ++mHighlightGeneration);
     }
 
     @Override
     public void insertString(final int offs, final String str, AttributeSet a)
             throws BadLocationException {
         super.insertString(offs, str, a);
-        execHighlight(offs, str.length());
+        if (!mHighlightSuspended) {
+            execHighlight(offs, str.length());
+        }
     }
 
     @Override
     public void remove(int offs, int len) throws BadLocationException {
         super.remove(offs, len);
-        execHighlight(offs, 0);
+        if (!mHighlightSuspended) {
+            execHighlight(offs, 0);
+        }
     }
 
-    private void execHighlight(final int offset, final int length) throws BadLocationException {
-        String content = getText(0, getLength());
+    @Override
+    protected void fireUndoableEditUpdate(UndoableEditEvent e) {
+        // The styles from background highlighting are not user edits.
+        if (!mApplyingStyles) {
+            super.fireUndoableEditUpdate(e);
+        }
+    }
 
-        int startLine = rootElement.getElementIndex(offset);
-        int endLine = rootElement.getElementIndex(offset + length);
-        //System.out.println(startLine + " " + endLine);
+    // Only the lines touched by the change are tokenized again.
+    private void execHighlight(final int offset, final int length) throws BadLocationException {
+        int startLine = mRootElement.getElementIndex(offset);
+        int endLine = mRootElement.getElementIndex(offset + length);
         for (int i = startLine; i <= endLine; i++) {
-            execHighlightInner(content, i);
+            highlightLine(i);
+        }
+        if (mBackgroundHighlighting) {
+            // The offsets of pending runs are stale, tokenize again after typing pauses.
+            mHighlightGeneration++;
+            mRestartTimer.restart();
         }
-
-//        int end = rootElement.getElementIndex(content.length());
-//        for (int i = endLine + 1; i < end; i++) {
-//            Element branch = rootElement.getElement(i);
-//            Element leaf = getCharacterElement(branch.getStartOffset());
-//            AttributeSet as = leaf.getAttributes();
-//            if (as.isEqual(STYLE_COMMENT)) {
-//                execHighlightInner(content, i);
-//            }
-//        }
     }
 
-    private void execHighlightInner(String content, int line) {
-        int startOffset = rootElement.getElement(line).getStartOffset();
-        int endOffset = rootElement.getElement(line).getEndOffset() - 1;
-        int contentLength = content.length();
-
-        if (endOffset >= contentLength) {
-            endOffset = contentLength - 1;
-        }
-        // Set normal attributes for the line
+    private void highlightLine(int line) throws BadLocationException {
+        Element lineElement = mRootElement.getElement(line);
+        int startOffset = lineElement.getStartOffset();
+        int endOffset = Math.min(lineElement.getEndOffset() - 1, getLength());
         int lineLength = endOffset - startOffset;
-        //long s = System.currentTimeMillis();
-        setCharacterAttributes(startOffset, lineLength, STYLE_DEFAULT, true);
-        //System.out.println(line +" " + startOffset + " " + endOffset + " " + (System.currentTimeMillis() - s));
-
-        // Check for single line comment
-        int index = content.indexOf('#', startOffset);
-        if ((index > -1) && (index < endOffset)) {
-            setCharacterAttributes(index, endOffset - index + 1, STYLE_COMMENT, false);
-            endOffset = index - 1;
-        }
-        while (startOffset <= endOffset) {
-            // Skip the delimiters to find the start of a new token
-            while (isDelimiter(content.substring(startOffset, startOffset + 1))) {
-                if (startOffset < endOffset) {
-                    startOffset++;
-                } else {
-                    return;
+        if (lineLength <= 0) {
+            return;
+        }
+        setCharacterAttributes(startOffset, lineLength, STYLES[SmaliLexer.STYLE_DEFAULT], true);
+        // The segment may share the content array, it is fine because only attributes change.
+        getText(startOffset, lineLength, mSegment);
+        SmaliLexer.scanLine(mSegment.array, mSegment.offset,
+                mSegment.offset + mSegment.count, startOffset, mStyleApplier);
+    }
+
+    private void startHighlight(final String text, final int generation) {
+        mBackgroundHighlighting = true;
+        final long startTime = System.currentTimeMillis();
+        getTokenizer().execute(() -> {
+            final char[] chars = text.toCharArray();
+            // Each run is stored as [offset, length << 3 | style].
+            final IntArray runs = new IntArray(chars.length / 8 + 16);
+            final SmaliLexer.TokenHandler collector = (offset, length, style) -> {
+                runs.add(offset);
+                runs.add(length << 3 | style);
+            };
+            int lineStart = 0;
+            for (int i = 0; i <= chars.length; i++) {
+                if (i == chars.length || chars[i] == '\n') {
+                    SmaliLexer.scanLine(chars, lineStart, i, lineStart, collector);
+                    lineStart = i + 1;
+                    if (generation != mHighlightGeneration) {
+                        return;
+                    }
                 }
             }
-
-            // Extract and process the entire token
-            if (isQuoteDelimiter(content.substring(startOffset, startOffset + 1))) {
-                startOffset = getQuoteToken(content, startOffset, endOffset);
-            } else {
-                startOffset = getOtherToken(content, startOffset, endOffset);
-            }
-        }
+            SwingUtilities.invokeLater(new StyleApplier(runs, generation, startTime));
+        });
     }
 
-    private int getQuoteToken(String content, int startOffset, int endOffset) {
-        String quoteDelimiter = content.substring(startOffset, startOffset + 1);
-        String escapeString = "\\" + quoteDelimiter;
-        int endOfQuote = startOffset;
+    private final class StyleApplier implements Runnable {
+        final IntArray mRuns;
+        final int mGeneration;
+        final long mStartTime;
+        final int mRunCount;
+        final int mChunkCount;
+        final BitSet mAppliedChunks;
 
-        // Skip over the escape quotes in this quote
-        int index = content.indexOf(escapeString, endOfQuote + 1);
-        while ((index > -1) && (index < endOffset)) {
-            endOfQuote = index + 1;
-            index = content.indexOf(escapeString, endOfQuote);
+        StyleApplier(IntArray runs, int generation, long startTime) {
+            mRuns = runs;
+            mGeneration = generation;
+            mStartTime = startTime;
+            mRunCount = runs.size() / 2;
+            mChunkCount = (mRunCount + RUNS_PER_CHUNK - 1) / RUNS_PER_CHUNK;
+            mAppliedChunks = new BitSet(mChunkCount);
         }
 
-		// Now find the matching delimiter
-        index = content.indexOf(quoteDelimiter, endOfQuote + 1);
-        if ((index < 0) || (index > endOffset)) {
-            endOfQuote = endOffset;
-        } else {
-            endOfQuote = index;
+        @Override
+        public void run() {
+            if (mGeneration != mHighlightGeneration) {
+                return;
+            }
+            final long deadline = System.nanoTime() + APPLY_BATCH_NANOS;
+            mApplyingStyles = true;
+            try {
+                do {
+                    int chunk = nextChunk();
+                    if (chunk < 0) {
+                        mBackgroundHighlighting = false;
+                        DLog.i("Highlighted " + mRunCount + " tokens in "
+                                + (System.currentTimeMillis() - mStartTime) + "ms");
+                        return;
+                    }
+                    applyChunk(chunk);
+                } while (System.nanoTime() < deadline);
+            } finally {
+                mApplyingStyles = false;
+            }
+            SwingUtilities.invokeLater(this);
         }
-        setCharacterAttributes(startOffset, endOfQuote - startOffset + 1, STYLE_STRING, false);
 
-        return endOfQuote + 1;
-    }
-
-    private int getOtherToken(String content, int startOffset, int endOffset) {
-        int endOfToken = startOffset + 1;
-
-        while (endOfToken <= endOffset) {
-            String c = content.substring(endOfToken, endOfToken + 1);
-            // '-' for smali instr
-            if (c.charAt(0) != '-' && isDelimiter(c)) {
-                break;
+        private void applyChunk(int chunk) {
+            mAppliedChunks.set(chunk);
+            final int end = Math.min(mRunCount, (chunk + 1) * RUNS_PER_CHUNK);
+            for (int r = chunk * RUNS_PER_CHUNK; r < end; r++) {
+                final int lenStyle = mRuns.get(r * 2 + 1);
+                setCharacterAttributes(mRuns.get(r * 2), lenStyle >>> 3, STYLES[lenStyle & 7], false);
             }
-
-            endOfToken++;
         }
 
-        String token = content.substring(startOffset, endOfToken);
-
-        // see if this token has a highlighting format associated with it
-        MutableAttributeSet attr = keywords.get(token);
-        if (attr != null) {
-            setCharacterAttributes(startOffset, endOfToken - startOffset, attr, false);
+        private int nextChunk() {
+            if (mView != null && mView.isShowing()) {
+                final Rectangle r = mView.getVisibleRect();
+                final int start = mView.viewToModel(r.getLocation());
+                final int end = mView.viewToModel(new Point(r.x + r.width, r.y + r.height));
+                if (start >= 0 && end >= start) {
+                    for (int c = findRun(start) / RUNS_PER_CHUNK; c < mChunkCount
+                            && mRuns.get(c * RUNS_PER_CHUNK * 2) <= end; c++) {
+                        if (!mAppliedChunks.get(c)) {
+                            return c;
+                        }
+                    }
+                }
+            }
+            final int c = mAppliedChunks.nextClearBit(0);
+            return c < mChunkCount ? c : -1;
+        }
+
+        // Returns the index of the first run which ends after the offset.
+        private int findRun(int offset) {
+            int low = 0;
+            int high = mRunCount - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int i = mid * 2;
+                if (mRuns.get(i) + (mRuns.get(i + 1) >>> 3) <= offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
         }
-
-        return endOfToken + 1;
-    }
-
-    private static boolean isDelimiter(String character) {
-        String operands = ";:{}()[]+-/%<=>!&|^~*";
-        return Character.isWhitespace(character.charAt(0)) || operands.contains(character);
-    }
-
-    private static boolean isQuoteDelimiter(String character) {
-        return "\"'".contains(character);
     }
 }
 
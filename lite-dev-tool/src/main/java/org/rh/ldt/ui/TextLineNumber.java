@@ -28,6 +28,7 @@ import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import javax.swing.text.Element;
 import javax.swing.text.JTextComponent;
 import javax.swing.text.StyleConstants;
@@ -110,6 +111,7 @@ public final class TextLineNumber extends JPanel
         component.getDocument().addDocumentListener(this);
         component.addCaretListener(this);
         component.addPropertyChangeListener("font", this);
+        component.addPropertyChangeListener("document", this);
     }
 
     /**
@@ -462,6 +464,16 @@ public final class TextLineNumber extends JPanel
     //
     @Override
     public void propertyChange(PropertyChangeEvent evt) {
+        if ("document".equals(evt.getPropertyName())) {
+            if (evt.getOldValue() instanceof Document) {
+                ((Document) evt.getOldValue()).removeDocumentListener(this);
+            }
+            if (evt.getNewValue() instanceof Document) {
+                ((Document) evt.getNewValue()).addDocumentListener(this);
+            }
+            repaint();
+            return;
+        }
         if (evt.getNewValue() instanceof Font) {
             if (updateFont) {
                 Font newFont = (Font) evt.getNewValue();
@@ -16,33 +16,65 @@
 
 package org.rh.ldt.ui;
 
+import org.rh.ldt.DLog;
 import org.rh.ldt.util.IntArray;
 
 import java.awt.Color;
-import java.awt.Cursor;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultHighlighter;
 import javax.swing.text.Document;
-import javax.swing.text.Element;
-import javax.swing.text.Highlighter;
 import javax.swing.text.Highlighter.HighlightPainter;
 import javax.swing.text.JTextComponent;
 import javax.swing.text.Segment;
 
 public class TextSearch {
-    private static Cursor sWaitCursor;
+    private static final int RESULT_BATCH_SIZE = 512;
+    private static final long HIGHLIGHT_BATCH_NANOS = 8 * 1000 * 1000;
     private static ExecutorService sEs;
 
     private final JTextComponent mTextArea;
     private final ColorHighlightPainter mSearchPainter;
     private final HashMap<HighlightPainter, ArrayList<Object>> mHighlightTags = new HashMap<>();
     private String mLastSearchText;
+    private Mode mLastSearchMode;
     private ResultIndexes mLastResult;
+    private final Segment mText = new Segment();
+    private int[] mLineStarts;
+    private Document mIndexedDocument;
+    private IntArray mLastCandidates;
+    private String mLastCandidatesString;
+    private boolean mLastCandidatesIgnoreCase;
+    private int mIndexVersion;
+    private SearchJob mSearchJob;
+    private final DocumentListener mIndexInvalidator = new DocumentListener() {
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            invalidateIndex();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            invalidateIndex();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+    };
 
     public final static int[] Highlights = {
         0x9BFFFF, 0xFFCD9B, 0xCD9BFF, 0x9BCD9B, 0xE1909B, 0x7DC2FF, 0xE1C29B};
@@ -50,9 +82,12 @@ public class TextSearch {
     public TextSearch(JTextComponent content) {
         mTextArea = content;
         mSearchPainter = new ColorHighlightPainter(Color.YELLOW);
-        if (sWaitCursor == null) {
-            sWaitCursor = new Cursor(Cursor.WAIT_CURSOR);
-            sEs = Executors.newSingleThreadExecutor();
+        if (sEs == null) {
+            sEs = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "TextSearch");
+                t.setDaemon(true);
+                return t;
+            });
         }
     }
 
@@ -78,20 +113,8 @@ public class TextSearch {
         mTextArea.getHighlighter().removeAllHighlights();
     }
 
-    public boolean search(String target) {
-        return search(target, mSearchPainter);
-    }
-
-    public boolean search(String target, ColorHighlightPainter highlightPainter) {
-        if (target == null || target.equals(mLastSearchText)) {
-            return false;
-        }
-        if (highlightPainter != null) {
-            removeHighlight(highlightPainter);
-        }
-        mLastResult = highlightText(target, highlightPainter);
-        mLastSearchText = target;
-        return true;
+    public boolean isSearching() {
+        return mSearchJob != null;
     }
 
     public String getLastSearchText() {
@@ -106,43 +129,187 @@ public class TextSearch {
         return mLastResult == null ? null : mLastResult.lineIndexes;
     }
 
-    public ResultIndexes highlightText(String searchString) {
-        return highlightText(new SearchParam(searchString), mSearchPainter);
+    /**
+     * Searches in background and highlights the results with the default painter. The
+     * previous search is cancelled. The listener is notified on the EDT for each batch.
+     */
+    public void searchAsync(String target, SearchListener listener) {
+        searchAsync(new SearchParam(target), listener);
+    }
+
+    public void searchAsync(SearchParam sparam, SearchListener listener) {
+        final String target = sparam.searchString;
+        if (target == null) {
+            return;
+        }
+        if (target.equals(mLastSearchText) && sparam.mode == mLastSearchMode && mLastResult != null) {
+            if (listener != null) {
+                listener.onSearchUpdate(mLastResult, mSearchJob == null);
+            }
+            return;
+        }
+        cancelSearch();
+        removeHighlight(mSearchPainter);
+        mLastSearchText = target;
+        mLastSearchMode = sparam.mode;
+        if (target.isEmpty()) {
+            mLastResult = new ResultIndexes();
+            if (listener != null) {
+                listener.onSearchUpdate(mLastResult, true);
+            }
+            return;
+        }
+        mSearchJob = new SearchJob(createSearch(sparam), mSearchPainter, listener);
+        mLastResult = mSearchJob.mResults;
+        mSearchJob.start();
     }
 
-    public ResultIndexes highlightText(String searchString, HighlightPainter painter) {
-        return highlightText(new SearchParam(searchString), painter);
+    /**
+     * Highlights all occurrences in background without changing the last search result.
+     */
+    public void highlightTextAsync(String searchString, HighlightPainter painter) {
+        highlightTextAsync(new SearchParam(searchString), painter);
     }
 
-    public ResultIndexes highlightText(SearchParam sparam, HighlightPainter painter) {
-        Cursor startCursor = mTextArea.getCursor();
+    public void highlightTextAsync(SearchParam sparam, HighlightPainter painter) {
+        new SearchJob(createSearch(sparam), painter, null).start();
+    }
 
-        Highlighter highlighter = mTextArea.getHighlighter();
-        Search search = new Search(mTextArea.getDocument(), sparam);
+    public void cancelSearch() {
+        if (mSearchJob != null) {
+            mSearchJob.cancel();
+            mSearchJob = null;
+        }
+    }
 
-        mTextArea.setEditable(false);
-        mTextArea.setCursor(sWaitCursor);
+    private Search createSearch(SearchParam sparam) {
+        ensureIndexed();
+        final TextMatcher matcher = compileMatcher(sparam);
+        String foldedString = sparam.ignoreCase
+                ? foldCase(sparam.searchString) : sparam.searchString;
+        // Occurrences of a longer query can only be at the occurrences of its prefix.
+        IntArray previous = mLastCandidates != null && !foldedString.isEmpty()
+                && matcher instanceof HorspoolMatcher
+                && sparam.ignoreCase == mLastCandidatesIgnoreCase
+                && foldedString.startsWith(mLastCandidatesString) ? mLastCandidates : null;
+        return new Search(mText, mLineStarts, sparam, matcher, previous, foldedString,
+                mIndexVersion);
+    }
 
-        ResultIndexes results = null;
+    /**
+     * Compiles the query of the given mode. An invalid regular expression matches nothing.
+     */
+    static TextMatcher compileMatcher(SearchParam sparam) {
+        final String q = sparam.searchString;
+        final int caseFlags = sparam.ignoreCase
+                ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0;
         try {
-            results = sEs.submit(search).get();
-            final int s = results.dataOffsets.size();
-            if (s > 0 && painter != null) {
-                ArrayList<Object> ps = mHighlightTags.computeIfAbsent(
-                        painter, k -> new ArrayList<>(64));
-                for (int i = 0; i < s; i++) {
-                    int start = results.dataOffsets.get(i);
-                    ps.add(highlighter.addHighlight(start,
-                            start + sparam.searchString.length(), painter));
-                }
+            switch (sparam.mode) {
+                case REGEX:
+                    return new RegexMatcher(Pattern.compile(q, caseFlags | Pattern.MULTILINE));
+                case REGISTER:
+                    // "v1" does not match "v10" or a part of a type name.
+                    return new RegexMatcher(Pattern.compile(
+                            "(?<![\\w$/-])" + Pattern.quote(q) + "(?![\\w$])", caseFlags));
+                case TYPE:
+                    return new RegexMatcher(Pattern.compile(typePattern(q), caseFlags));
+                case METHOD:
+                    return new RegexMatcher(Pattern.compile(methodPattern(q), caseFlags));
+                default:
+                    return new HorspoolMatcher(q, sparam.ignoreCase);
+            }
+        } catch (PatternSyntaxException e) {
+            DLog.i("Invalid pattern: " + e.getDescription());
+            return new RegexMatcher(null);
+        }
+    }
+
+    // "Bar", "com.foo.Bar", "com/foo/Bar" or "Lcom/foo/Bar;" to a type descriptor pattern.
+    private static String typePattern(String q) {
+        if (q.startsWith("L") && q.endsWith(";")) {
+            return Pattern.quote(q);
+        }
+        if (q.indexOf('/') < 0) {
+            q = q.replace('.', '/');
+        }
+        return "L(?:[^;\\s()]*/)?" + Pattern.quote(q) + ";";
+    }
+
+    // "foo" matches the name of references and definitions, "Bar;->foo" or
+    // "Lcom/foo/Bar;->foo(I)V" also checks the owner type.
+    private static String methodPattern(String q) {
+        final int arrow = q.indexOf("->");
+        String name = arrow >= 0 ? q.substring(arrow + 2) : q;
+        final String paren = name.indexOf('(') < 0 ? "(?=\\()" : "";
+        if (arrow < 0) {
+            return "(?<=->|\\s)" + Pattern.quote(name) + paren;
+        }
+        String owner = q.substring(0, arrow);
+        if (owner.endsWith(";")) {
+            owner = owner.substring(0, owner.length() - 1);
+        }
+        return typePattern(owner.startsWith("L") ? owner.substring(1) : owner)
+                + "->" + Pattern.quote(name) + paren;
+    }
+
+    private void storeCandidates(Search search) {
+        if (search.indexVersion == mIndexVersion && search.candidates != null) {
+            mLastCandidates = search.candidates;
+            mLastCandidatesString = search.foldedString;
+            mLastCandidatesIgnoreCase = search.param.ignoreCase;
+        }
+    }
+
+    private void addHighlight(HighlightPainter painter, int start, int length) {
+        try {
+            mHighlightTags.computeIfAbsent(painter, k -> new ArrayList<>(64)).add(
+                    mTextArea.getHighlighter().addHighlight(start, start + length, painter));
+        } catch (BadLocationException e) {
+            // The document was changed after searching.
+        }
+    }
+
+    // The text and line starts are kept until the document is changed or replaced.
+    private void ensureIndexed() {
+        final Document doc = mTextArea.getDocument();
+        if (doc != mIndexedDocument) {
+            if (mIndexedDocument != null) {
+                mIndexedDocument.removeDocumentListener(mIndexInvalidator);
+            }
+            doc.addDocumentListener(mIndexInvalidator);
+            mIndexedDocument = doc;
+            invalidateIndex();
+        }
+        if (mLineStarts != null) {
+            return;
+        }
+        try {
+            doc.getText(0, doc.getLength(), mText);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+            mText.array = new char[0];
+            mText.offset = mText.count = 0;
+        }
+        final IntArray lineStarts = new IntArray(mText.count / 32 + 1);
+        lineStarts.add(0);
+        final char[] a = mText.array;
+        for (int i = mText.offset, end = mText.offset + mText.count; i < end; i++) {
+            if (a[i] == '\n') {
+                lineStarts.add(i - mText.offset + 1);
             }
-        } catch (Exception ex) {
-            ex.printStackTrace();
         }
+        mLineStarts = lineStarts.toArray();
+    }
 
-        mTextArea.setEditable(true);
-        mTextArea.setCursor(startCursor);
-        return results;
+    private void invalidateIndex() {
+        mIndexVersion++;
+        mLineStarts = null;
+        mLastCandidates = null;
+        if (mSearchJob != null) {
+            // The offsets of a running search are stale, let the next request search again.
+            cancelSearch();
+            mLastSearchText = null;
+        }
     }
 
     public void removeHighlight(HighlightPainter painter) {
@@ -155,94 +322,428 @@ public class TextSearch {
         }
     }
 
+    enum Mode {
+        PLAIN("Plain"),
+        WHOLE_WORD("Whole word"),
+        REGEX("Regex"),
+        REGISTER("Register"),
+        TYPE("Type"),
+        METHOD("Method");
+
+        final String title;
+
+        Mode(String t) {
+            title = t;
+        }
+    }
+
     static class SearchParam {
         String searchString;
         boolean ignoreCase = true;
-        boolean fullString;// = true;
+        Mode mode = Mode.PLAIN;
         SearchParam(String str) {
             searchString = str;
         }
+
+        SearchParam(String str, Mode m) {
+            searchString = str;
+            mode = m;
+        }
+    }
+
+    /**
+     * Folds the case of a char independently of the default locale.
+     */
+    static char foldCase(char c) {
+        if (c < 128) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(c);
+    }
+
+    /**
+     * Folds each char by foldCase, so the result has the length of s.
+     */
+    static String foldCase(String s) {
+        final char[] a = s.toCharArray();
+        for (int i = 0; i < a.length; i++) {
+            a[i] = foldCase(a[i]);
+        }
+        return new String(a);
     }
 
     static class ResultIndexes {
         final IntArray dataOffsets;
         final IntArray lineIndexes;
-        ResultIndexes(IntArray d, IntArray l) {
+        final IntArray matchLengths;
+        ResultIndexes() {
+            this(new IntArray(64), new IntArray(64), new IntArray(64));
+        }
+
+        ResultIndexes(IntArray d, IntArray l, IntArray len) {
             dataOffsets = d;
             lineIndexes = l;
+            matchLengths = len;
+        }
+
+        void append(IntArray d, IntArray l, IntArray len) {
+            dataOffsets.ensureCapacity(dataOffsets.size() + d.size());
+            lineIndexes.ensureCapacity(lineIndexes.size() + l.size());
+            matchLengths.ensureCapacity(matchLengths.size() + len.size());
+            for (int i = 0; i < d.size(); i++) {
+                dataOffsets.add(d.get(i));
+                lineIndexes.add(l.get(i));
+                matchLengths.add(len.get(i));
+            }
         }
     }
 
-    private static class Search implements Callable<ResultIndexes> {
+    public interface SearchListener {
+        void onSearchUpdate(ResultIndexes results, boolean completed);
+    }
 
-        private final Document document;
-        SearchParam param;
+    private interface ResultSink {
+        void onResults(IntArray dataOffsets, IntArray lineIndexes, IntArray matchLengths,
+                       boolean completed);
+    }
 
-        Search(Document d, SearchParam s) {
-            document = d;
-            param = s;
+    // Receives the batches of a background search on the EDT and adds their highlights,
+    // the ones in the visible region first.
+    private final class SearchJob implements Runnable {
+        final Search mSearch;
+        final HighlightPainter mPainter;
+        final SearchListener mListener;
+        final ResultIndexes mResults = new ResultIndexes();
+        // Pairs of offset and length.
+        final IntArray mPending = new IntArray(64);
+        int mPendingIndex;
+        boolean mApplyScheduled;
+        boolean mCancelled;
+
+        SearchJob(Search search, HighlightPainter painter, SearchListener listener) {
+            mSearch = search;
+            mPainter = painter;
+            mListener = listener;
+        }
+
+        void start() {
+            sEs.execute(() -> mSearch.run((offsets, lines, lengths, completed) ->
+                    SwingUtilities.invokeLater(() -> onBatch(offsets, lines, lengths, completed))));
+        }
+
+        void cancel() {
+            mCancelled = true;
+            mSearch.cancelled = true;
+        }
+
+        private void onBatch(IntArray offsets, IntArray lines, IntArray lengths,
+                             boolean completed) {
+            if (mCancelled) {
+                return;
+            }
+            mResults.append(offsets, lines, lengths);
+            if (mPainter != null) {
+                int visibleStart = 0;
+                int visibleEnd = -1;
+                if (mTextArea.isShowing()) {
+                    final Rectangle r = mTextArea.getVisibleRect();
+                    visibleStart = mTextArea.viewToModel(r.getLocation());
+                    visibleEnd = mTextArea.viewToModel(new Point(r.x + r.width, r.y + r.height));
+                }
+                for (int i = 0; i < offsets.size(); i++) {
+                    final int offset = offsets.get(i);
+                    if (offset >= visibleStart && offset <= visibleEnd) {
+                        addHighlight(mPainter, offset, lengths.get(i));
+                    } else {
+                        mPending.add(offset);
+                        mPending.add(lengths.get(i));
+                    }
+                }
+                if (!mApplyScheduled && mPendingIndex < mPending.size()) {
+                    mApplyScheduled = true;
+                    SwingUtilities.invokeLater(this);
+                }
+            }
+            if (completed) {
+                storeCandidates(mSearch);
+                if (mSearchJob == this) {
+                    mSearchJob = null;
+                }
+            }
+            if (mListener != null) {
+                mListener.onSearchUpdate(mResults, completed);
+            }
+        }
+
+        @Override
+        public void run() {
+            mApplyScheduled = false;
+            if (mCancelled) {
+                return;
+            }
+            final long deadline = System.nanoTime() + HIGHLIGHT_BATCH_NANOS;
+            while (mPendingIndex < mPending.size() && System.nanoTime() < deadline) {
+                addHighlight(mPainter, mPending.get(mPendingIndex), mPending.get(mPendingIndex + 1));
+                mPendingIndex += 2;
+            }
+            if (mPendingIndex < mPending.size()) {
+                mApplyScheduled = true;
+                SwingUtilities.invokeLater(this);
+            }
+        }
+    }
+
+    /**
+     * A compiled query. It is reset to a range of a char array and then returns the
+     * matches in order.
+     */
+    interface TextMatcher {
+        void reset(char[] a, int start, int end);
+
+        /**
+         * Returns the start of the next match, or -1 if there is no more.
+         */
+        int next();
+
+        int matchLength();
+    }
+
+    // Runs a regular expression on the char array without copying it.
+    static final class RegexMatcher implements TextMatcher {
+        private final Pattern mPattern;
+        private Matcher mMatcher;
+        private int mStart;
+
+        RegexMatcher(Pattern pattern) {
+            mPattern = pattern;
+        }
+
+        @Override
+        public void reset(char[] a, int start, int end) {
+            mStart = start;
+            mMatcher = mPattern == null ? null
+                    : mPattern.matcher(CharBuffer.wrap(a, start, end - start));
+        }
+
+        @Override
+        public int next() {
+            if (mMatcher == null) {
+                return -1;
+            }
+            while (mMatcher.find()) {
+                if (mMatcher.end() > mMatcher.start()) {
+                    return mStart + mMatcher.start();
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int matchLength() {
+            return mMatcher.end() - mMatcher.start();
+        }
+    }
+
+    /**
+     * Boyer-Moore-Horspool matcher which compares chars case-insensitively if needed.
+     * The shift table is indexed by the low byte of the char, a collision only makes
+     * the shift shorter.
+     */
+    static final class HorspoolMatcher implements TextMatcher {
+        private final char[] mPattern;
+        private final boolean mIgnoreCase;
+        private final int[] mShift = new int[256];
+        private char[] mText;
+        private int mFrom;
+        private int mEnd;
+
+        HorspoolMatcher(String pattern, boolean ignoreCase) {
+            mIgnoreCase = ignoreCase;
+            final int m = pattern.length();
+            mPattern = new char[m];
+            for (int i = 0; i < m; i++) {
+                mPattern[i] = fold(pattern.charAt(i));
+            }
+            Arrays.fill(mShift, Math.max(m, 1));
+            for (int i = 0; i < m - 1; i++) {
+                mShift[mPattern[i] & 0xFF] = m - 1 - i;
+            }
+        }
+
+        int length() {
+            return mPattern.length;
+        }
+
+        @Override
+        public void reset(char[] a, int start, int end) {
+            mText = a;
+            mFrom = start;
+            mEnd = end;
+        }
+
+        // Overlapped occurrences are returned as well.
+        @Override
+        public int next() {
+            final int pos = indexOf(mText, mFrom, mEnd);
+            if (pos >= 0) {
+                mFrom = pos + 1;
+            }
+            return pos;
         }
 
         @Override
-        public ResultIndexes call() throws Exception {
-            return search();
-        }
-
-        private ResultIndexes search() {
-            IntArray lineOffsets = new IntArray(64);
-            IntArray lineIndexes = new IntArray(64);
-            IntArray dataOffsets = new IntArray(64);
-            final Element element = document.getDefaultRootElement();
-            final int elementCount = element.getElementCount();
-
-            for (int i = 0; i < elementCount; i++) {
-                lineOffsets.add(element.getElement(i).getStartOffset());
-            }
-            lineOffsets.add(element.getElement(element.getElementCount() - 1).getEndOffset());
-
-            int count = 0;
-            int lsOffset, leOffset;
-            final int totalLine = lineOffsets.size() - 1;
-
-            final boolean fullString = param.fullString;
-            final String searchString = param.ignoreCase ?
-                    param.searchString.toLowerCase() : param.searchString;
-            final Segment seg = new Segment();
-            while (count < totalLine) {
-                lsOffset = lineOffsets.get(count);
-                leOffset = lineOffsets.get(count + 1);
-
-                try {
-                    document.getText(lsOffset, leOffset - lsOffset, seg);
-                } catch (BadLocationException e) {
-                    e.printStackTrace();
+        public int matchLength() {
+            return mPattern.length;
+        }
+
+        private char fold(char c) {
+            return mIgnoreCase ? foldCase(c) : c;
+        }
+
+        /**
+         * Returns the index of the first occurrence in a[from, end), or -1.
+         */
+        int indexOf(char[] a, int from, int end) {
+            final int m = mPattern.length;
+            if (m == 0) {
+                return -1;
+            }
+            final char last = mPattern[m - 1];
+            int i = from + m - 1;
+            while (i < end) {
+                final char c = fold(a[i]);
+                if (c == last) {
+                    final int start = i - m + 1;
+                    int k = m - 2;
+                    while (k >= 0 && fold(a[start + k]) == mPattern[k]) {
+                        k--;
+                    }
+                    if (k < 0) {
+                        return start;
+                    }
+                }
+                i += mShift[c & 0xFF];
+            }
+            return -1;
+        }
+
+        boolean matchesAt(char[] a, int pos, int end) {
+            final int m = mPattern.length;
+            if (pos < 0 || pos + m > end) {
+                return false;
+            }
+            for (int k = 0; k < m; k++) {
+                if (fold(a[pos + k]) != mPattern[k]) {
+                    return false;
                 }
+            }
+            return true;
+        }
+    }
 
-                String line = param.ignoreCase ? seg.toString().toLowerCase() : seg.toString();
-                int mark = 0;//, lastAddedCount = -1;
-
-                while ((mark = line.indexOf(searchString, mark)) > -1) {
-                    if (fullString && mark > 0) {
-                        if (!Character.isLetter(line.charAt(mark - 1)) &&
-                                !Character.isLetter(line.charAt(mark + searchString.length()))) {
-                            dataOffsets.add(lsOffset + mark);
-                            //if (lastAddedCount != count) {
-                                lineIndexes.add(count);
-                            //}
-                            //lastAddedCount = count;
+    private static class Search {
+
+        private final char[] text;
+        private final int textOffset;
+        private final int textLength;
+        private final int[] lineStarts;
+        private final IntArray previousCandidates;
+        private final TextMatcher matcher;
+        final SearchParam param;
+        final String foldedString;
+        final int indexVersion;
+        volatile boolean cancelled;
+        // All occurrences including overlapped ones, for narrowing the next search.
+        IntArray candidates;
+
+        Search(Segment t, int[] ls, SearchParam s, TextMatcher m, IntArray previous,
+               String folded, int version) {
+            text = t.array;
+            matcher = m;
+            textOffset = t.offset;
+            textLength = t.count;
+            lineStarts = ls;
+            param = s;
+            previousCandidates = previous;
+            foldedString = folded;
+            indexVersion = version;
+        }
+
+        /**
+         * Reports the results to the sink in batches. Returns false if it is cancelled.
+         */
+        boolean run(ResultSink sink) {
+            IntArray lineIndexes = new IntArray(RESULT_BATCH_SIZE);
+            IntArray dataOffsets = new IntArray(RESULT_BATCH_SIZE);
+            IntArray matchLengths = new IntArray(RESULT_BATCH_SIZE);
+            final int end = textOffset + textLength;
+            final boolean literal = matcher instanceof HorspoolMatcher;
+            final IntArray found = literal ? new IntArray(previousCandidates != null
+                    ? Math.max(previousCandidates.size(), 16) : 64) : null;
+            final boolean wholeWord = param.mode == Mode.WHOLE_WORD;
+            int previousIndex = 0;
+            int line = 0;
+            int lastEnd = 0;
+            matcher.reset(text, textOffset, end);
+            while (true) {
+                int pos;
+                if (previousCandidates != null) {
+                    final HorspoolMatcher hm = (HorspoolMatcher) matcher;
+                    pos = -1;
+                    while (previousIndex < previousCandidates.size()) {
+                        final int p = previousCandidates.get(previousIndex++);
+                        if (hm.matchesAt(text, textOffset + p, end)) {
+                            pos = p;
+                            break;
                         }
-                    } else {
-                        dataOffsets.add(lsOffset + mark);
-                        //if (lastAddedCount != count) {
-                            lineIndexes.add(count);
-                        //}
-                        //lastAddedCount = count;
                     }
-                    mark += searchString.length();
+                } else {
+                    pos = matcher.next();
+                    if (pos >= 0) {
+                        pos -= textOffset;
+                    }
+                }
+                if (pos < 0) {
+                    break;
+                }
+                if (cancelled) {
+                    return false;
+                }
+                if (found != null) {
+                    found.add(pos);
+                }
+                final int length = matcher.matchLength();
+                if (pos < lastEnd || (wholeWord && !isWholeWord(pos, length))) {
+                    continue;
+                }
+                while (line + 1 < lineStarts.length && lineStarts[line + 1] <= pos) {
+                    line++;
+                }
+                dataOffsets.add(pos);
+                lineIndexes.add(line);
+                matchLengths.add(length);
+                lastEnd = pos + length;
+                if (dataOffsets.size() >= RESULT_BATCH_SIZE) {
+                    sink.onResults(dataOffsets, lineIndexes, matchLengths, false);
+                    dataOffsets = new IntArray(RESULT_BATCH_SIZE);
+                    lineIndexes = new IntArray(RESULT_BATCH_SIZE);
+                    matchLengths = new IntArray(RESULT_BATCH_SIZE);
                 }
-                count++;
             }
-            return new ResultIndexes(dataOffsets, lineIndexes);
+            candidates = found;
+            sink.onResults(dataOffsets, lineIndexes, matchLengths, true);
+            return true;
+        }
+
+        private boolean isWholeWord(int pos, int length) {
+            final int start = textOffset + pos;
+            final int end = start + length;
+            return (pos == 0 || !isWordChar(text[start - 1]))
+                    && (end >= textOffset + textLength || !isWordChar(text[end]));
+        }
+
+        private static boolean isWordChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '$';
         }
     }
 }
@@ -39,12 +39,16 @@ import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.DocumentEvent.EventType;
 import javax.swing.text.AbstractDocument;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.DocumentFilter;
 import javax.swing.text.EditorKit;
 import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
 import javax.swing.text.JTextComponent;
 import javax.swing.text.TextAction;
 import javax.swing.undo.UndoManager;
@@ -60,10 +64,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 public final class ViewerPanel extends JPanel {
 
@@ -76,12 +76,16 @@ public final class ViewerPanel extends JPanel {
     }
 
     private final static int DEFAULT_FONT_SIZE = 13;
-    private final static ScheduledExecutorService sSchedExecSvc = Executors.newScheduledThreadPool(1);
+    private final static int SEARCH_DELAY_MS = 250;
     private final JTextComponent mTextPane;
     private final StyledUndoManager mUndoMgr;
     private AbstractDocument mDocument;
     private final JTextField mSearchTF;
     private final TextSearch mTextSearch;
+    private final Timer mSearchDelay;
+    private boolean mSearchFocusPending;
+    private boolean mResultWindowPending;
+    private TextSearch.Mode mSearchMode = TextSearch.Mode.PLAIN;
     private final TextLineNumber mTln;
     private final JLabel mSearchStatus;
     private int mCurrentSearchResultIndex;
@@ -103,76 +107,86 @@ public final class ViewerPanel extends JPanel {
         return mTextPane.getText();
     }
 
-    private void insertPartial(final int offset, final String text) {
-        try {
-            mDocument.insertString(offset, text, null);
-        } catch (BadLocationException ex) {
-            ex.printStackTrace();
-        }
-    }
-
     public void setText(final String str) {
         final String text = str == null ? "" : str;
-        final int partialLoad = 20000;
-        final int length = text.length();
-        final int rounds = length / partialLoad;
-        final long s = System.currentTimeMillis();
-        if (rounds > 0 && (mTextPane instanceof JEditorPane)) {
-            final ScheduledFuture[] ftask = new ScheduledFuture[1];
-            ftask[0] = sSchedExecSvc.scheduleAtFixedRate(new Runnable() {
-                int i = 0;
-                @Override
-                public void run() {
-                    if (i < rounds) {
-                        int offset = i * partialLoad;
-                        String t = text.substring(offset, offset + partialLoad);
-                        DLog.i("Syntax painting " + (offset + partialLoad) + " / " +length);
-                        insertPartial(offset, t);
-                        refreshLine();
-                        i++;
-                    } else {
-                        int offset = rounds * partialLoad;
-                        String t = text.substring(offset, offset + (length % partialLoad));
-                        DLog.i("Syntax painting "
-                                + (offset + (length % partialLoad)) + " / " +length);
-                        insertPartial(offset, t);
-                        refreshLine();
-                        startUndoable();
-                        ftask[0].cancel(false);
-                        DLog.i("Complete in " + (System.currentTimeMillis() - s) + "ms");
-                    }
-                }
-
-            }, 0, 30, TimeUnit.MILLISECONDS);
-
+        if (mDocument instanceof SmaliTextDocument) {
+            setDocument(new SmaliTextDocument(text));
+        } else if (mDocument instanceof SmaliDocument) {
+            ((SmaliDocument) mDocument).load(text, mTextPane);
         } else {
             mTextPane.setText(text);
-            //System.out.println("c " + (System.currentTimeMillis() - s));
-            refreshLine();
-            startUndoable();
         }
+        refreshLine();
+        startUndoable();
     }
 
     private void startUndoable() {
         if (mDocument.getUndoableEditListeners().length == 0) {
-            SwingUtilities.invokeLater(() -> mDocument.addUndoableEditListener(evt -> {
-                if (mChangeListener != null) {
-                    UndoableEdit edit = evt.getEdit();
-                    if (edit instanceof AbstractDocument.DefaultDocumentEvent) {
-                        AbstractDocument.DefaultDocumentEvent event =
-                                (AbstractDocument.DefaultDocumentEvent) edit;
-                        if (event.getType() == EventType.INSERT
-                                || event.getType() == EventType.REMOVE) {
-                            mChangeCount++;
-                            mChangeListener.onChange(true);
-                        }
+            SwingUtilities.invokeLater(this::addUndoListener);
+        }
+    }
+
+    private void addUndoListener() {
+        if (mDocument.getUndoableEditListeners().length != 0) {
+            return;
+        }
+        mDocument.addUndoableEditListener(evt -> {
+            if (mChangeListener != null) {
+                UndoableEdit edit = evt.getEdit();
+                if (edit instanceof AbstractDocument.DefaultDocumentEvent) {
+                    AbstractDocument.DefaultDocumentEvent event =
+                            (AbstractDocument.DefaultDocumentEvent) edit;
+                    if (event.getType() == EventType.INSERT
+                            || event.getType() == EventType.REMOVE) {
+                        mChangeCount++;
+                        mChangeListener.onChange(true);
                     }
                 }
-                mUndoMgr.addEdit(evt.getEdit());
-            }));
+            }
+            mUndoMgr.addEdit(evt.getEdit());
+        });
+    }
+
+    private void setDocument(AbstractDocument doc) {
+        mTextPane.setDocument(doc);
+        mDocument = doc;
+        if (doc instanceof SmaliTextDocument) {
+            ((SmaliTextDocument) doc).setEditListener(this::switchToEditable);
         }
     }
 
+    // The read-only document is replaced by the editable one with the first edit.
+    private void switchToEditable(SmaliTextDocument doc, int offset, int removeLength,
+                                  String insert) throws BadLocationException {
+        if (doc != mDocument) {
+            return;
+        }
+        final JEditorPane pane = (JEditorPane) mTextPane;
+        final int caret = pane.getCaretPosition();
+        final Rectangle visibleRect = pane.getVisibleRect();
+        final String text = doc.getText(0, doc.getLength());
+        doc.setEditListener(null);
+
+        pane.setEditorKit(((SmaliTextEditorKit) pane.getEditorKit()).getEditableKit());
+        mDocument = (AbstractDocument) pane.getDocument();
+        ((SmaliDocument) mDocument).load(text, pane);
+        // Recreate the positions of existing highlights on the new document.
+        final Highlighter highlighter = pane.getHighlighter();
+        for (Highlighter.Highlight h : highlighter.getHighlights()) {
+            highlighter.changeHighlight(h, h.getStartOffset(), h.getEndOffset());
+        }
+        pane.setCaretPosition(caret);
+        addUndoListener();
+        if (removeLength > 0) {
+            mDocument.remove(offset, removeLength);
+        }
+        if (insert != null) {
+            mDocument.insertString(offset, insert, null);
+        }
+        pane.scrollRectToVisible(visibleRect);
+        DLog.i("Switched to editable document");
+    }
+
     public void setDocumentFilter(VDocumentFilter f) {
         mDocument.setDocumentFilter(f);
     }
@@ -246,7 +260,32 @@ public final class ViewerPanel extends JPanel {
         hb.add(new JLabel("Search"));
         mSearchTF = new JTextField(10);
         mTextSearch = new TextSearch(mTextPane);
-        mSearchTF.addActionListener(e -> performSearch());
+        mSearchDelay = new Timer(SEARCH_DELAY_MS, e -> {
+            // Search as typing, a single char usually matches too many.
+            if (mSearchTF.getText().length() != 1) {
+                performSearch(false);
+            }
+        });
+        mSearchDelay.setRepeats(false);
+        mSearchTF.addActionListener(e -> {
+            mSearchDelay.stop();
+            performSearch(true);
+        });
+        mSearchTF.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                mSearchDelay.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                mSearchDelay.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
 
         hb.add(mSearchTF);
         mSearchStatus = new JLabel("");
@@ -297,6 +336,21 @@ public final class ViewerPanel extends JPanel {
         final ButtonGroup fontSizeBg = new ButtonGroup();
         optMenu.add(fontTypeMenu);
         optMenu.add(fontSizeMenu);
+        final JMenu searchModeMenu = new JMenu("Search mode");
+        final ButtonGroup searchModeBg = new ButtonGroup();
+        for (TextSearch.Mode mode : TextSearch.Mode.values()) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(mode.title);
+            item.setSelected(mode == mSearchMode);
+            item.addActionListener(e -> {
+                mSearchMode = mode;
+                if (mSearchTF.getText().length() > 0) {
+                    performSearch(false);
+                }
+            });
+            searchModeBg.add(item);
+            searchModeMenu.add(item);
+        }
+        optMenu.add(searchModeMenu);
         JMenuItem jmi = new JMenuItem("Undo");
         jmi.setAction(mTextPane.getActionMap().get("Undo"));
         jmi.setAccelerator(KeyStroke.getKeyStroke("control Z"));
@@ -383,18 +437,31 @@ public final class ViewerPanel extends JPanel {
         return startEnd;
     }
 
-    private void performSearch() {
-        if (mSearchTF.getText() == null || mSearchTF.getText().length() < 1) {
+    private void performSearch(final boolean requestFocus) {
+        final String text = mSearchTF.getText();
+        if (text == null || text.length() < 1) {
+            mTextSearch.searchAsync("", null);
+            mSearchStatus.setText("");
+            mResultWindowPending = false;
             return;
         }
-        mTextSearch.search(mSearchTF.getText());
-        IntArray res = mTextSearch.getLastDataResult();
         mCurrentSearchResultIndex = 0;
-        if (res == null || res.size() == 0) {
-            mSearchStatus.setText("(0/0)");
-            return;
-        }
-        updateSearchFocus(0);
+        mSearchFocusPending = true;
+        final TextSearch.SearchParam sparam = new TextSearch.SearchParam(text, mSearchMode);
+        mTextSearch.searchAsync(sparam, (results, completed) -> {
+            if (results.dataOffsets.size() == 0) {
+                mSearchStatus.setText(completed ? "(0/0)" : "(...)");
+            } else if (mSearchFocusPending) {
+                mSearchFocusPending = false;
+                showSearchResult(requestFocus);
+            } else {
+                updateSearchStatus();
+            }
+            if (completed && mResultWindowPending) {
+                mResultWindowPending = false;
+                showSearchResultWindow();
+            }
+        });
     }
 
     private void updateSearchFocus(int offset) {
@@ -407,20 +474,47 @@ public final class ViewerPanel extends JPanel {
             return;
         }
         mCurrentSearchResultIndex += offset;
-        mSearchStatus.setText("(" + (mCurrentSearchResultIndex + 1) + "/" + indexes.size() + ")");
-        mTextPane.setCaretPosition(indexes.get(mCurrentSearchResultIndex));
-        mTextPane.requestFocusInWindow();
+        showSearchResult(true);
+    }
+
+    private void showSearchResult(boolean requestFocus) {
+        updateSearchStatus();
+        mTextPane.setCaretPosition(mTextSearch.getLastDataResult().get(mCurrentSearchResultIndex));
+        if (requestFocus) {
+            mTextPane.requestFocusInWindow();
+        }
     }
 
+    private void updateSearchStatus() {
+        mSearchStatus.setText("(" + (mCurrentSearchResultIndex + 1) + "/"
+                + mTextSearch.getLastDataResult().size()
+                + (mTextSearch.isSearching() ? "+" : "") + ")");
+    }
+
+    // The window is opened when the search of the current query has completed.
     private void popSearchResultWindow() {
-        if (!checkMaySearch()) {
+        final String text = mSearchTF.getText();
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        if (!text.equals(mTextSearch.getLastSearchText())) {
+            mResultWindowPending = true;
+            performSearch(true);
+        } else if (mTextSearch.isSearching()) {
+            mResultWindowPending = true;
+        } else {
+            showSearchResultWindow();
+        }
+    }
+
+    private void showSearchResultWindow() {
+        IntArray indexes = mTextSearch.getLastDataResult();
+        if (indexes == null || indexes.size() == 0) {
             return;
         }
         ViewerPanel vp = new ViewerPanel(null);
         StringBuilder sb = new StringBuilder(256);
         IntArray lines = mTextSearch.getLastLineResult();
-        IntArray indexes = mTextSearch.getLastDataResult();
-        //System.out.println(lines.size() + " " + indexes.size());
         for (int i = 0; i < indexes.size(); i++) {
             try {
                 int[] rowBeginEnd = getRowBeginEnd(mTextPane, indexes.get(i));
@@ -436,7 +530,8 @@ public final class ViewerPanel extends JPanel {
         vp.refreshLine();
 
         vp.mTextPane.setCaretPosition(0);
-        vp.mTextSearch.highlightText(mSearchTF.getText());
+        vp.mTextSearch.highlightTextAsync(
+                new TextSearch.SearchParam(mSearchTF.getText(), mSearchMode), null);
         final JFrame frame = new JFrame(
                 (mContentDesc != null ? (mContentDesc + " ") : "") + mSearchTF.getText());
         frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
@@ -449,8 +544,8 @@ public final class ViewerPanel extends JPanel {
 
     private boolean checkMaySearch() {
         IntArray indexes = mTextSearch.getLastLineResult();
-        if (indexes == null || (!mTextSearch.getLastSearchText().equals(mSearchTF.getText()))) {
-            performSearch();
+        if (indexes == null || !mSearchTF.getText().equals(mTextSearch.getLastSearchText())) {
+            performSearch(true);
             indexes = mTextSearch.getLastLineResult();
         }
         return indexes != null && indexes.size() > 0;
@@ -499,7 +594,7 @@ public final class ViewerPanel extends JPanel {
                     if (selText != null && selText.length() > 0) {
                         addHl.setText(selText);
                         delHl.setText(selText);
-                        mTextSearch.highlightText(selText, cPainter);
+                        mTextSearch.highlightTextAsync(selText, cPainter);
                     }
                 }
             });
@@ -103,6 +103,20 @@ public class DexUtilEx extends DexUtil {
         return (m.getAccessFlags() & AccessFlags.CONSTRUCTOR.getValue()) != 0;
     }
 
+    /**
+     * Returns a hash which is the same for the methods that isSameMethod considers the same.
+     */
+    public static long getMethodHash(Method m) {
+        long h = m.getDefiningClass().hashCode();
+        h = h * 0x100000001B3L + m.getName().hashCode();
+        h = h * 0x100000001B3L + m.getReturnType().hashCode();
+        h = h * 0x100000001B3L + m.getAccessFlags();
+        for (MethodParameter p : m.getParameters()) {
+            h = h * 0x100000001B3L + p.getType().hashCode();
+        }
+        return h;
+    }
+
     public static boolean isSameMethod(Method m1, Method m2) {
         if (m1.getName().equals(m2.getName())
                 && m1.getReturnType().equals(m2.getReturnType())
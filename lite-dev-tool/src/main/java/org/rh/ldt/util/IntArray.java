@@ -59,12 +59,16 @@ public final class IntArray {
     }
 
     public boolean contains(int v) {
-        for (int val : data) {
-            if (val == v) {
-                return true;
+        return indexOf(v) >= 0;
+    }
+
+    public int indexOf(int v) {
+        for (int i = 0; i <= lastIndex; i++) {
+            if (data[i] == v) {
+                return i;
             }
         }
-        return false;
+        return -1;
     }
 
     public void clear() {
@@ -81,23 +85,20 @@ public final class IntArray {
     }
 
     public boolean removeTarget(int value) {
-        int i = 0;
-        for (; i <= lastIndex; i++) {
-            if (data[i] == value) {
-                break;
-            }
-        }
-        return remove(i);
+        final int i = indexOf(value);
+        return i >= 0 && remove(i);
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("{");
-        for (int i = 0; i < lastIndex; i++) {
-            sb.append(data[i]).append(',');
+        for (int i = 0; i <= lastIndex; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(data[i]);
         }
-        sb.append(data[lastIndex]).append("}");
-        return sb.toString();
+        return sb.append('}').toString();
     }
 
     public int[] toArray() {
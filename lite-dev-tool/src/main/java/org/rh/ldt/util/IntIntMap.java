@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rh.ldt.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from int to int without boxing. Keys are probed linearly,
+ * and removal shifts the following entries back so no tombstone is needed.
+ */
+public final class IntIntMap {
+    private static final int FREE_KEY = 0;
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private boolean hasFreeKey;
+    private int freeKeyValue;
+
+    public IntIntMap() {
+        this(16);
+    }
+
+    public IntIntMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    static int capacityFor(int expectedSize) {
+        return Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+    }
+
+    static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private int slot(int key) {
+        int i = mix(key) & mask;
+        int k;
+        while ((k = keys[i]) != FREE_KEY) {
+            if (k == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -i - 1;
+    }
+
+    public int get(int key, int defaultValue) {
+        if (key == FREE_KEY) {
+            return hasFreeKey ? freeKeyValue : defaultValue;
+        }
+        final int i = slot(key);
+        return i >= 0 ? values[i] : defaultValue;
+    }
+
+    public boolean containsKey(int key) {
+        return key == FREE_KEY ? hasFreeKey : slot(key) >= 0;
+    }
+
+    public void put(int key, int value) {
+        if (key == FREE_KEY) {
+            if (!hasFreeKey) {
+                hasFreeKey = true;
+                size++;
+            }
+            freeKeyValue = value;
+            return;
+        }
+        int i = slot(key);
+        if (i >= 0) {
+            values[i] = value;
+            return;
+        }
+        i = -i - 1;
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Adds delta to the value of the key, the missing value is 0. Returns the new value.
+     */
+    public int increment(int key, int delta) {
+        final int v = get(key, 0) + delta;
+        put(key, v);
+        return v;
+    }
+
+    public boolean remove(int key) {
+        if (key == FREE_KEY) {
+            if (!hasFreeKey) {
+                return false;
+            }
+            hasFreeKey = false;
+            size--;
+            return true;
+        }
+        int i = slot(key);
+        if (i < 0) {
+            return false;
+        }
+        size--;
+        // Shift back the entries of the same probe sequence.
+        int next = (i + 1) & mask;
+        int k;
+        while ((k = keys[next]) != FREE_KEY) {
+            final int home = mix(k) & mask;
+            if (((next - home) & mask) >= ((next - i) & mask)) {
+                keys[i] = k;
+                values[i] = values[next];
+                i = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[i] = FREE_KEY;
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        final int[] oldKeys = keys;
+        final int[] oldValues = values;
+        allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++) {
+            final int k = oldKeys[j];
+            if (k != FREE_KEY) {
+                final int i = -slot(k) - 1;
+                keys[i] = k;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE_KEY);
+        hasFreeKey = false;
+        size = 0;
+    }
+
+    public interface Visitor {
+        void visit(int key, int value);
+    }
+
+    public void forEach(Visitor visitor) {
+        if (hasFreeKey) {
+            visitor.visit(FREE_KEY, freeKeyValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE_KEY) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        forEach((k, v) -> {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(k).append('=').append(v);
+        });
+        return sb.append('}').toString();
+    }
+}
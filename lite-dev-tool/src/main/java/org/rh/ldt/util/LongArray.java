@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rh.ldt.util;
+
+import java.util.Arrays;
+
+public final class LongArray {
+    private int lastIndex = -1;
+    private long[] data;
+
+    public LongArray() {
+        this(10);
+    }
+
+    public LongArray(int initSize) {
+        data = new long[initSize];
+    }
+
+    public void ensureCapacity(int minCapacity) {
+        int oldCapacity = data.length;
+        if (minCapacity > oldCapacity) {
+            int newCapacity = (oldCapacity * 3) / 2 + 1;
+            if (newCapacity < minCapacity) {
+                newCapacity = minCapacity;
+            }
+            data = Arrays.copyOf(data, newCapacity);
+        }
+    }
+
+    public void add(long c) {
+        ensureCapacity(++lastIndex + 1);
+        data[lastIndex] = c;
+    }
+
+    public int size() {
+        return lastIndex + 1;
+    }
+
+    public long get(int index) {
+        return data[index];
+    }
+
+    public void set(int index, long value) {
+        data[index] = value;
+    }
+
+    public boolean contains(long v) {
+        return indexOf(v) >= 0;
+    }
+
+    public int indexOf(long v) {
+        for (int i = 0; i <= lastIndex; i++) {
+            if (data[i] == v) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void clear() {
+        lastIndex = -1;
+    }
+
+    public boolean remove(int index) {
+        if (lastIndex - index >= 0) {
+            System.arraycopy(data, index + 1, data, index, lastIndex - index);
+            lastIndex--;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean removeTarget(long value) {
+        final int i = indexOf(value);
+        return i >= 0 && remove(i);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i <= lastIndex; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(data[i]);
+        }
+        return sb.append('}').toString();
+    }
+
+    public long[] toArray() {
+        long[] a = new long[size()];
+        System.arraycopy(data, 0, a, 0, a.length);
+        return a;
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rh.ldt.util;
+
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.iface.ClassDef;
+import org.rh.ldt.DLog;
+
+import javax.annotation.Nonnull;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LRU cache of disassembled smali text, bounded by the total number of characters.
+ * Entries pushed out of the LRU are kept softly reachable until the GC needs the memory.
+ */
+public final class SmaliCache {
+    private static final long DEFAULT_MAX_CHARS = 16 * 1024 * 1024;
+    private static final int MAX_PREFETCH_COUNT = 16;
+    private static SmaliCache sInstance;
+
+    private final LinkedHashMap<Key, String> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+    private final HashMap<Key, SoftEntry> mEvicted = new HashMap<>();
+    private final ReferenceQueue<String> mClearedQueue = new ReferenceQueue<>();
+    private final AtomicInteger mPrefetchGeneration = new AtomicInteger();
+    // DexBackedDexFile has identity equality.
+    private final WeakHashMap<Object, Integer> mDexIds = new WeakHashMap<>();
+    // The references are kept until their dex is collected and they are polled.
+    private final HashSet<DexRef> mDexRefs = new HashSet<>();
+    private final ReferenceQueue<Object> mCollectedDexQueue = new ReferenceQueue<>();
+    private int mLastDexId;
+    private final long mMaxChars;
+    private ExecutorService mPrefetcher;
+    private long mChars;
+    private long mHits;
+    private long mSoftHits;
+    private long mMisses;
+
+    public static synchronized SmaliCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new SmaliCache(DEFAULT_MAX_CHARS);
+        }
+        return sInstance;
+    }
+
+    public SmaliCache(long maxChars) {
+        mMaxChars = maxChars;
+    }
+
+    // The dex of a key is referred to by id, so the cache does not keep a closed dex alive.
+    private static final class Key {
+        final int dex;
+        final String type;
+
+        Key(int dexId, String type) {
+            dex = dexId;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return dex == k.dex && type.equals(k.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return dex * 31 + type.hashCode();
+        }
+    }
+
+    private synchronized Key keyOf(ClassDef classDef) {
+        int id = 0;
+        if (classDef instanceof DexBackedClassDef) {
+            final Object dex = ((DexBackedClassDef) classDef).dexFile;
+            final Integer dexId = mDexIds.get(dex);
+            if (dexId != null) {
+                id = dexId;
+            } else {
+                id = ++mLastDexId;
+                mDexIds.put(dex, id);
+                mDexRefs.add(new DexRef(dex, id, mCollectedDexQueue));
+            }
+        }
+        return new Key(id, classDef.getType());
+    }
+
+    private static final class DexRef extends WeakReference<Object> {
+        final int id;
+
+        DexRef(Object dex, int dexId, ReferenceQueue<Object> q) {
+            super(dex, q);
+            id = dexId;
+        }
+    }
+
+    // Drops the entries of the dex files which were collected.
+    private void purgeCollectedDex() {
+        HashSet<Integer> ids = null;
+        DexRef ref;
+        while ((ref = (DexRef) mCollectedDexQueue.poll()) != null) {
+            mDexRefs.remove(ref);
+            if (ids == null) {
+                ids = new HashSet<>();
+            }
+            ids.add(ref.id);
+        }
+        if (ids == null) {
+            return;
+        }
+        final HashSet<Integer> collected = ids;
+        final Iterator<Map.Entry<Key, String>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Key, String> e = it.next();
+            if (collected.contains(e.getKey().dex)) {
+                mChars -= e.getValue().length();
+                it.remove();
+            }
+        }
+        mEvicted.keySet().removeIf(k -> collected.contains(k.dex));
+    }
+
+    private static final class SoftEntry extends SoftReference<String> {
+        final Key key;
+
+        SoftEntry(Key k, String content, ReferenceQueue<String> q) {
+            super(content, q);
+            key = k;
+        }
+    }
+
+    @Nonnull
+    public String getSmali(@Nonnull ClassDef classDef) {
+        final Key key = keyOf(classDef);
+        String content = lookup(key, true);
+        if (content == null) {
+            content = SmaliUtil.getSmaliContent(classDef);
+            put(key, content);
+        }
+        return content;
+    }
+
+    private synchronized String lookup(Key key, boolean count) {
+        String content = mEntries.get(key);
+        if (content != null) {
+            if (count) {
+                mHits++;
+            }
+            return content;
+        }
+        final SoftEntry ref = mEvicted.remove(key);
+        if (ref != null && (content = ref.get()) != null) {
+            if (count) {
+                mSoftHits++;
+            }
+            put(key, content);
+            return content;
+        }
+        if (count) {
+            mMisses++;
+        }
+        return null;
+    }
+
+    private synchronized void put(Key key, String content) {
+        purgeCollectedDex();
+        final String old = mEntries.put(key, content);
+        if (old != null) {
+            mChars -= old.length();
+        }
+        mChars += content.length();
+        final Iterator<Map.Entry<Key, String>> it = mEntries.entrySet().iterator();
+        while (mChars > mMaxChars && mEntries.size() > 1) {
+            final Map.Entry<Key, String> eldest = it.next();
+            mChars -= eldest.getValue().length();
+            mEvicted.put(eldest.getKey(), new SoftEntry(
+                    eldest.getKey(), eldest.getValue(), mClearedQueue));
+            it.remove();
+        }
+        SoftEntry cleared;
+        while ((cleared = (SoftEntry) mClearedQueue.poll()) != null) {
+            if (mEvicted.get(cleared.key) == cleared) {
+                mEvicted.remove(cleared.key);
+            }
+        }
+    }
+
+    /**
+     * Disassembles the classes near the given index in background, so opening the
+     * next class of the same package is immediate. A new call cancels the previous one.
+     */
+    public void prefetch(@Nonnull List<? extends ClassDef> siblings, int center) {
+        final int generation = mPrefetchGeneration.incrementAndGet();
+        final ArrayList<ClassDef> targets = new ArrayList<>(MAX_PREFETCH_COUNT);
+        for (int d = 1; targets.size() < MAX_PREFETCH_COUNT
+                && (center - d >= 0 || center + d < siblings.size()); d++) {
+            if (center + d < siblings.size()) {
+                targets.add(siblings.get(center + d));
+            }
+            if (center - d >= 0 && targets.size() < MAX_PREFETCH_COUNT) {
+                targets.add(siblings.get(center - d));
+            }
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (mPrefetcher == null) {
+                mPrefetcher = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "SmaliPrefetch");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                });
+            }
+        }
+        mPrefetcher.execute(() -> {
+            for (ClassDef c : targets) {
+                if (generation != mPrefetchGeneration.get()) {
+                    return;
+                }
+                final Key key = keyOf(c);
+                if (lookup(key, false) == null) {
+                    try {
+                        put(key, SmaliUtil.getSmaliContent(c));
+                    } catch (Exception e) {
+                        DLog.ex(e);
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mEvicted.clear();
+        mChars = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SmaliCache entries=" + mEntries.size() + " chars=" + mChars + "/" + mMaxChars
+                + " soft=" + mEvicted.size() + " hits=" + mHits + " softHits=" + mSoftHits
+                + " misses=" + mMisses;
+    }
+}
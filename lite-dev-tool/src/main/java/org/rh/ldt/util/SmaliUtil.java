@@ -38,6 +38,7 @@ import org.jf.smali.LexerErrorInterface;
 import org.jf.smali.smaliFlexLexer;
 import org.jf.smali.smaliParser;
 import org.jf.smali.smaliTreeWalker;
+import org.jf.util.ClassFileNameHandler;
 import org.jf.util.IndentingWriter;
 import org.rh.ldt.DLog;
 import org.rh.smaliex.DexUtil;
@@ -45,13 +46,18 @@ import org.rh.smaliex.MiscUtil;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -60,6 +66,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SmaliUtil {
 
@@ -110,12 +117,16 @@ public class SmaliUtil {
     }
 
     public static String getSmaliContent(ClassDef classDef) {
+        return getSmaliContent(classDef, getDefaultOptions(classDef));
+    }
+
+    public static BaksmaliOptions getDefaultOptions(ClassDef classDef) {
         final BaksmaliOptions options = new BaksmaliOptions();
         options.apiLevel = classDef instanceof DexBackedClassDef
                 ? ((DexBackedClassDef) classDef).dexFile.getOpcodes().api
                 : DexUtil.getDefaultOpCodes().api;
         options.accessorComments = false;
-        return getSmaliContent(classDef, options);
+        return options;
     }
 
     public static String getOdexSmaliContent(ClassDef classDef, ClassPath classPath) {
@@ -144,6 +155,81 @@ public class SmaliUtil {
         return sw.toString();
     }
 
+    public static void writeSmaliFile(ClassDef classDef, BaksmaliOptions options, File output)
+            throws IOException {
+        final ClassDefinition cd = new ClassDefinition(options, classDef);
+        try (IndentingWriter writer = new IndentingWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(output), "UTF-8"), 16384))) {
+            cd.writeTo(writer);
+        }
+    }
+
+    // Disassemble classes in parallel and write each one directly to its smali file.
+    // If flat is true, all files are put in outputDir, otherwise in package folders.
+    public static int exportSmali(@Nonnull Collection<? extends ClassDef> classes,
+                                  @Nonnull final File outputDir, final boolean flat) {
+        final long s = System.currentTimeMillis();
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        final AtomicLong totalBytes = new AtomicLong();
+        final List<Future<Boolean>> tasks = new ArrayList<>(classes.size());
+        // Names are resolved here in one thread, so no two tasks write the same file
+        // when types only differ in case.
+        final ClassFileNameHandler names = new ClassFileNameHandler(outputDir, ".smali");
+        final Set<String> flatNames = flat ? new HashSet<>() : null;
+        for (final ClassDef classDef : classes) {
+            final File output = getSmaliFile(names, flatNames, classDef.getType());
+            tasks.add(executor.submit(() -> {
+                final File parent = output.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                    DLog.i("Unable to create " + parent);
+                    return false;
+                }
+                writeSmaliFile(classDef, getDefaultOptions(classDef), output);
+                totalBytes.addAndGet(output.length());
+                return true;
+            }));
+        }
+
+        int count = 0;
+        for (Future<Boolean> task : tasks) {
+            try {
+                if (task.get()) {
+                    count++;
+                }
+            } catch (InterruptedException iex) {
+                DLog.ex(iex);
+                break;
+            } catch (ExecutionException eex) {
+                DLog.ex(eex);
+            }
+        }
+        executor.shutdownNow();
+
+        final long cost = Math.max(1, System.currentTimeMillis() - s);
+        final long kb = totalBytes.get() / 1024;
+        DLog.i("Exported " + count + " classes (" + kb + " KB) to " + outputDir + " in " + cost
+                + "ms, " + (count * 1000L / cost) + " classes/s, " + (kb * 1000 / cost) + " KB/s");
+        return count;
+    }
+
+    // Lcom/a/B; -> outputDir/com/a/B.smali, or outputDir/B.smali if flatNames is not null.
+    // Classes of the same flat name are numbered.
+    private static File getSmaliFile(ClassFileNameHandler names,
+                                     @Nullable Set<String> flatNames, String type) {
+        if (flatNames != null) {
+            final String simpleName = type.substring(
+                    Math.max(type.lastIndexOf('/'), 0) + 1, type.length() - 1);
+            String name = simpleName;
+            for (int n = 1; flatNames.contains(name); n++) {
+                name = simpleName + "_" + n;
+            }
+            flatNames.add(name);
+            type = "L" + name + ";";
+        }
+        return names.getUniqueFilenameForClass(type);
+    }
+
     @Nullable
     public static ClassDef assembleSmali(String smaliContent, int apiLevel) {
         try {
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rh.ldt.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Assigns a dense int id to each distinct string, so the strings can be referred
+ * to by IntArray and IntIntMap, or index plain arrays.
+ */
+public final class StringTable {
+    private String[] strings;
+    // Open addressing slots of id + 1, 0 is empty.
+    private int[] slots;
+    private int[] hashes;
+    private int size;
+
+    public StringTable() {
+        this(64);
+    }
+
+    public StringTable(int expectedSize) {
+        strings = new String[Math.max(expectedSize, 4)];
+        hashes = new int[strings.length];
+        slots = new int[IntIntMap.capacityFor(expectedSize)];
+    }
+
+    private int slot(String s, int h) {
+        final int mask = slots.length - 1;
+        int i = IntIntMap.mix(h) & mask;
+        int id;
+        while ((id = slots[i] - 1) >= 0) {
+            if (hashes[id] == h && strings[id].equals(s)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the id of the string, adding it if it is new.
+     */
+    public int intern(String s) {
+        final int h = s.hashCode();
+        final int i = slot(s, h);
+        if (slots[i] != 0) {
+            return slots[i] - 1;
+        }
+        if (size == strings.length) {
+            strings = Arrays.copyOf(strings, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        strings[size] = s;
+        hashes[size] = h;
+        slots[i] = ++size;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    /**
+     * Returns the id of the UTF-8 string, adding it if it is new. An ASCII string
+     * which was added is found without creating a String.
+     */
+    public int intern(byte[] a, int offset, int length) {
+        int h = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (a[i] < 0) {
+                return intern(new String(a, offset, length, StandardCharsets.UTF_8));
+            }
+            h = 31 * h + a[i];
+        }
+        final int mask = slots.length - 1;
+        int i = IntIntMap.mix(h) & mask;
+        int id;
+        while ((id = slots[i] - 1) >= 0) {
+            if (hashes[id] == h && equalsAscii(strings[id], a, offset, length)) {
+                return id;
+            }
+            i = (i + 1) & mask;
+        }
+        return intern(new String(a, offset, length, StandardCharsets.US_ASCII));
+    }
+
+    private static boolean equalsAscii(String s, byte[] a, int offset, int length) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != a[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the id of the string, or -1 if it was not added.
+     */
+    public int indexOf(String s) {
+        final int h = s.hashCode();
+        return slots[slot(s, h)] - 1;
+    }
+
+    public String get(int id) {
+        return strings[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length << 1];
+        final int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int i = IntIntMap.mix(hashes[id]) & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = id + 1;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(strings, 0, size, null);
+        Arrays.fill(slots, 0);
+        size = 0;
+    }
+}
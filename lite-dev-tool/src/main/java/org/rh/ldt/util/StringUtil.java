@@ -28,7 +28,8 @@ import java.awt.datatransfer.StringSelection;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Set;
 
 public class StringUtil {
@@ -126,115 +127,361 @@ public class StringUtil {
         }
     }
 
+    /**
+     * Multiple pattern matcher. The trie is stored as a double array: the child of
+     * state s by char class c is t = base[s] + c if check[t] == s. The char classes
+     * are the distinct chars of the patterns, so any UTF-16 char is supported and
+     * chars which are not in the patterns go back to the root immediately.
+     */
     public static final class AhoCorasick {
-        final static int FIRST_VISIBLE_ASCII = 32;
-        final static int LAST_VISIBLE_ASCII = 126;
-        final static int TRIE_SIZE = LAST_VISIBLE_ASCII - FIRST_VISIBLE_ASCII + 1;
-
-        private final static int TRIE_ROOT = 1;
-        private final static int TRIE_PATTERN = 2;
+        private static final int ROOT = 0;
+
+        public interface MatchHandler {
+            /**
+             * Called with the index of the matched pattern and the range [start, end)
+             * of the text. Returns false to stop the search.
+             */
+            boolean onMatch(int patternIndex, int start, int end);
+        }
 
-        static class Trie {
+        private String[] mPatterns;
+        // Pattern lengths in the units of the text, chars or UTF-8 bytes.
+        private int[] mLengths;
+        private final boolean mIgnoreCase;
+        private final boolean mUtf8;
+        // Char class of ASCII chars, the others are in mClassMap. Class 0 is unused chars.
+        private final int[] mAsciiClass = new int[128];
+        private final IntIntMap mClassMap = new IntIntMap();
+        private int mClassCount;
+        private int[] mBase;
+        private int[] mCheck;
+        private int[] mFail;
+        // The nearest state on the fail chain which has patterns, or -1.
+        private int[] mDictLink;
+        // Patterns ending at state s are mOutList[mOutStart[s], mOutStart[s + 1]).
+        private int[] mOutStart;
+        private int[] mOutList;
+        private int mStateCount;
 
-            Trie[] mNext = new Trie[TRIE_SIZE];
-            Trie mFailLink;
-            IntArray mPatternIdx = new IntArray(1);
-            int mVal;
+        public AhoCorasick(String[] patterns) {
+            this(patterns, false);
         }
 
-        Trie mRoot;
-        String[] mPatterns;
+        public AhoCorasick(String[] patterns, boolean ignoreCase) {
+            this(patterns, ignoreCase, false);
+        }
 
-        public AhoCorasick(String[] patterns) {
+        private AhoCorasick(String[] patterns, boolean ignoreCase, boolean utf8) {
+            mIgnoreCase = ignoreCase;
+            mUtf8 = utf8;
             rebuild(patterns);
         }
 
+        /**
+         * Creates an automaton to search UTF-8 text with search(byte[], ...). Only ASCII
+         * letters are compared ignoring case.
+         */
+        public static AhoCorasick forUtf8(String[] patterns, boolean ignoreCase) {
+            return new AhoCorasick(patterns, ignoreCase, true);
+        }
+
+        private static char fold(char c) {
+            if (c < 128) {
+                return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+            }
+            return Character.toLowerCase(Character.toUpperCase(c));
+        }
+
+        private int classOf(char c) {
+            if (mIgnoreCase && (c < 128 || !mUtf8)) {
+                c = fold(c);
+            }
+            return c < 128 ? mAsciiClass[c] : mClassMap.get(c, 0);
+        }
+
+        private int addClass(char c) {
+            int cls = classOf(c);
+            if (cls == 0) {
+                cls = ++mClassCount;
+                final char k = mIgnoreCase && (c < 128 || !mUtf8) ? fold(c) : c;
+                if (k < 128) {
+                    mAsciiClass[k] = cls;
+                } else {
+                    mClassMap.put(k, cls);
+                }
+            }
+            return cls;
+        }
+
         public void rebuild(String[] patterns) {
-            mRoot = new Trie();
-            mRoot.mVal = TRIE_ROOT;
             mPatterns = patterns;
-
+            mLengths = new int[patterns.length];
+            Arrays.fill(mAsciiClass, 0);
+            mClassMap.clear();
+            mClassCount = 0;
+
+            // Build a temporary trie as a list of edges, (parent, class) -> child.
+            final LongIntMap trie = new LongIntMap(256);
+            final IntArray edgeFrom = new IntArray(256);
+            final IntArray edgeClass = new IntArray(256);
+            final IntArray edgeTo = new IntArray(256);
+            final IntArray terminal = new IntArray(patterns.length * 2);
+            int nodeCount = 1;
             for (int i = 0; i < patterns.length; i++) {
-                Trie r = mRoot, t;
-                String p = patterns[i];
+                // A byte pattern is built as the string of its unsigned byte values.
+                final String p = mUtf8 ? new String(patterns[i].getBytes(StandardCharsets.UTF_8),
+                        StandardCharsets.ISO_8859_1) : patterns[i];
+                mLengths[i] = p.length();
+                int n = ROOT;
                 for (int j = 0; j < p.length(); j++) {
-                    int index = p.charAt(j) - FIRST_VISIBLE_ASCII;
-                    t = r.mNext[index];
-                    if (t == null) {
-                        t = new Trie();
+                    final int cls = addClass(p.charAt(j));
+                    final long key = ((long) n << 32) | cls;
+                    int t = trie.get(key, -1);
+                    if (t < 0) {
+                        t = nodeCount++;
+                        trie.put(key, t);
+                        edgeFrom.add(n);
+                        edgeClass.add(cls);
+                        edgeTo.add(t);
                     }
-                    t.mVal = TRIE_PATTERN;
-                    r.mNext[index] = t;
-                    r = t;
+                    n = t;
+                }
+                if (p.length() > 0) {
+                    terminal.add(n);
+                    terminal.add(i);
                 }
-                r.mPatternIdx.add(i);
             }
+            mStateCount = nodeCount;
 
-            LinkedList<Trie> q = new LinkedList<>();
-            for (int i = 0; i < TRIE_SIZE; i++) {
-                if (mRoot.mNext[i] != null && mRoot.mNext[i].mVal > 0) {
-                    mRoot.mNext[i].mFailLink = mRoot;
-                    q.add(mRoot.mNext[i]);
-                } else {
-                    mRoot.mNext[i] = mRoot;
+            // Group the edges by parent node, the classes are added in ascending order.
+            final int edgeCount = edgeFrom.size();
+            final int[] edgeStart = new int[nodeCount + 1];
+            for (int e = 0; e < edgeCount; e++) {
+                edgeStart[edgeFrom.get(e) + 1]++;
+            }
+            for (int n = 0; n < nodeCount; n++) {
+                edgeStart[n + 1] += edgeStart[n];
+            }
+            final int[] classes = new int[edgeCount];
+            final int[] targets = new int[edgeCount];
+            final int[] fill = Arrays.copyOf(edgeStart, nodeCount);
+            for (int e = 0; e < edgeCount; e++) {
+                final int pos = fill[edgeFrom.get(e)]++;
+                classes[pos] = edgeClass.get(e);
+                targets[pos] = edgeTo.get(e);
+            }
+            for (int n = 0; n < nodeCount; n++) {
+                Arrays.sort(classes, edgeStart[n], edgeStart[n + 1]);
+            }
+            // Sorting only the classes breaks the pairs, so look the targets up again.
+            for (int n = 0; n < nodeCount; n++) {
+                for (int e = edgeStart[n]; e < edgeStart[n + 1]; e++) {
+                    targets[e] = trie.get(((long) n << 32) | classes[e], -1);
                 }
             }
 
-            Trie head;
-            while ((head = q.poll()) != null) {
-                for (int i = 0; i < TRIE_SIZE; i++) {
-                    if (head.mNext[i] != null && (head.mNext[i].mVal > 0)) {
-                        q.add(head.mNext[i]);
-                        Trie f = head.mFailLink;
-
-                        while ((f.mNext[i] != null && f.mNext[i].mVal == 0) || f.mNext[i] == null) {
-                            f = f.mFailLink;
+            // Place the nodes breadth first, a parent is placed before its children.
+            final int[] stateOf = new int[nodeCount];
+            final int[] queue = new int[nodeCount];
+            int capacity = Math.max(nodeCount + mClassCount + 1, 16);
+            mBase = new int[capacity];
+            mCheck = new int[capacity];
+            Arrays.fill(mCheck, -1);
+            mCheck[ROOT] = ROOT;
+            // freeLink[p] leads to the first free slot at or after p.
+            int[] freeLink = new int[capacity + 1];
+            for (int i = 0; i <= capacity; i++) {
+                freeLink[i] = i;
+            }
+            freeLink[ROOT] = ROOT + 1;
+            int maxState = 0;
+            int head = 0, tail = 0;
+            queue[tail++] = ROOT;
+            while (head < tail) {
+                final int n = queue[head++];
+                final int s = stateOf[n];
+                final int from = edgeStart[n];
+                final int to = edgeStart[n + 1];
+                if (from == to) {
+                    continue;
+                }
+                int base;
+                int slot = findFree(freeLink, classes[from] + 1);
+                while (true) {
+                    base = slot - classes[from];
+                    if (base + mClassCount >= capacity) {
+                        final int oldCapacity = capacity;
+                        capacity = Math.max(capacity * 3 / 2, base + mClassCount + 1);
+                        mBase = Arrays.copyOf(mBase, capacity);
+                        mCheck = Arrays.copyOf(mCheck, capacity);
+                        Arrays.fill(mCheck, oldCapacity, capacity, -1);
+                        freeLink = Arrays.copyOf(freeLink, capacity + 1);
+                        for (int i = oldCapacity + 1; i <= capacity; i++) {
+                            freeLink[i] = i;
                         }
+                    }
+                    int e = from + 1;
+                    while (e < to && mCheck[base + classes[e]] < 0) {
+                        e++;
+                    }
+                    if (e == to) {
+                        break;
+                    }
+                    slot = findFree(freeLink, slot + 1);
+                }
+                mBase[s] = base;
+                for (int e = from; e < to; e++) {
+                    final int t = base + classes[e];
+                    mCheck[t] = s;
+                    freeLink[t] = t + 1;
+                    stateOf[targets[e]] = t;
+                    maxState = Math.max(maxState, t);
+                    queue[tail++] = targets[e];
+                }
+            }
+            // Keep room for base + any class of the last states.
+            capacity = maxState + mClassCount + 1;
+            mBase = Arrays.copyOf(mBase, capacity);
+            mCheck = Arrays.copyOf(mCheck, capacity);
+
+            mOutStart = new int[capacity + 1];
+            for (int i = 0; i < terminal.size(); i += 2) {
+                mOutStart[stateOf[terminal.get(i)] + 1]++;
+            }
+            for (int s = 0; s < capacity; s++) {
+                mOutStart[s + 1] += mOutStart[s];
+            }
+            mOutList = new int[terminal.size() / 2];
+            final int[] outFill = Arrays.copyOf(mOutStart, capacity);
+            for (int i = 0; i < terminal.size(); i += 2) {
+                mOutList[outFill[stateOf[terminal.get(i)]]++] = terminal.get(i + 1);
+            }
 
-                        head.mNext[i].mFailLink = f.mNext[i];
-                        if (f.mNext[i].mPatternIdx.size() > 0) {
-                            for (int j = 0; j < f.mNext[i].mPatternIdx.size(); j++) {
-                                head.mNext[i].mPatternIdx.add(f.mNext[i].mPatternIdx.get(j));
-                            }
-                        }
+            // The fail links of the shallower states are ready in breadth first order.
+            mFail = new int[capacity];
+            mDictLink = new int[capacity];
+            mDictLink[ROOT] = -1;
+            for (int q = 1; q < tail; q++) {
+                final int n = queue[q];
+                final int t = stateOf[n];
+                final int s = mCheck[t];
+                final int cls = t - mBase[s];
+                int fail = ROOT;
+                if (s != ROOT) {
+                    int f = mFail[s];
+                    int next;
+                    while ((next = child(f, cls)) < 0 && f != ROOT) {
+                        f = mFail[f];
                     }
+                    fail = next < 0 ? ROOT : next;
                 }
+                mFail[t] = fail;
+                mDictLink[t] = mOutStart[fail + 1] > mOutStart[fail] ? fail : mDictLink[fail];
             }
         }
 
-        public boolean contains(String text) {
-            return getMatchedPatternIndex(text, true) != null;
+        private static int findFree(int[] link, int p) {
+            int r = p;
+            while (link[r] != r) {
+                r = link[r];
+            }
+            while (link[p] != r) {
+                final int next = link[p];
+                link[p] = r;
+                p = next;
+            }
+            return r;
         }
 
-        public int[] getMatchedPatternIndex(String text) {
-            return getMatchedPatternIndex(text, false);
+        private int child(int s, int cls) {
+            final int t = mBase[s] + cls;
+            return mCheck[t] == s && t != ROOT ? t : -1;
         }
 
-        private static final int[] FOUND = new int[0];
+        private int step(int s, char c) {
+            final int cls = classOf(c);
+            if (cls == 0) {
+                return ROOT;
+            }
+            int next;
+            while ((next = child(s, cls)) < 0 && s != ROOT) {
+                s = mFail[s];
+            }
+            return next < 0 ? ROOT : next;
+        }
 
-        private int[] getMatchedPatternIndex(String text, boolean findAny) {
-            IntArray res = null;
-            Trie p = mRoot;
-            for (int i = 0; i < text.length(); i++) {
-                int c = text.charAt(i) - FIRST_VISIBLE_ASCII;
-                if (c >= TRIE_SIZE) {
-                    continue;
+        private boolean report(int s, int end, MatchHandler handler) {
+            for (int o = mOutStart[s + 1] > mOutStart[s] ? s : mDictLink[s]; o >= 0;
+                 o = mDictLink[o]) {
+                for (int k = mOutStart[o]; k < mOutStart[o + 1]; k++) {
+                    final int idx = mOutList[k];
+                    if (!handler.onMatch(idx, end - mLengths[idx], end)) {
+                        return false;
+                    }
                 }
-                while ((p.mNext[c] != null && (p.mNext[c].mVal == 0)) || (p.mNext[c] == null)) {
-                    p = p.mFailLink;
+            }
+            return true;
+        }
+
+        /**
+         * Reports all occurrences of the patterns in text[start, end) in the order of
+         * their end positions. Returns false if the handler stopped the search.
+         */
+        public boolean search(CharSequence text, int start, int end, MatchHandler handler) {
+            int s = ROOT;
+            for (int i = start; i < end; i++) {
+                s = step(s, text.charAt(i));
+                if (s != ROOT && !report(s, i + 1, handler)) {
+                    return false;
                 }
-                p = p.mNext[c];
-                for (int j = 0; j < p.mPatternIdx.size(); j++) {
-                    if (findAny) {
-                        return FOUND;
-                    }
-                    if (res == null) {
-                        res = new IntArray(mPatterns.length);
-                    }
-                    res.add(p.mPatternIdx.get(j));
+            }
+            return true;
+        }
+
+        public boolean search(char[] text, int start, int end, MatchHandler handler) {
+            int s = ROOT;
+            for (int i = start; i < end; i++) {
+                s = step(s, text[i]);
+                if (s != ROOT && !report(s, i + 1, handler)) {
+                    return false;
                 }
             }
-            return res == null ? null : res.toArray();
+            return true;
+        }
+
+        /**
+         * Searches UTF-8 text, the automaton must be created by forUtf8.
+         */
+        public boolean search(byte[] text, int start, int end, MatchHandler handler) {
+            int s = ROOT;
+            for (int i = start; i < end; i++) {
+                s = step(s, (char) (text[i] & 0xff));
+                if (s != ROOT && !report(s, i + 1, handler)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean contains(String text) {
+            return !search(text, 0, text.length(), (idx, start, end) -> false);
+        }
+
+        public int[] getMatchedPatternIndex(String text) {
+            final IntArray res = new IntArray(4);
+            search(text, 0, text.length(), (idx, start, end) -> {
+                res.add(idx);
+                return true;
+            });
+            return res.size() == 0 ? null : res.toArray();
+        }
+
+        public String[] getPatterns() {
+            return mPatterns;
+        }
+
+        public int getStateCount() {
+            return mStateCount;
         }
     }
 }
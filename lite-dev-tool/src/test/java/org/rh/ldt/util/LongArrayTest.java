@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.ldt.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongArrayTest {
+
+    @Test
+    public void testContainsOnlyInSize() {
+        final LongArray a = new LongArray(4);
+        a.add(1);
+        a.add(2);
+        a.add(3);
+        assertTrue(a.contains(3));
+        assertTrue(a.removeTarget(3));
+        // The removed value is still in the backing array.
+        assertFalse(a.contains(3));
+        assertEquals(-1, a.indexOf(3));
+        assertTrue(a.remove(0));
+        assertArrayEquals(new long[] {2}, a.toArray());
+        a.clear();
+        assertFalse(a.contains(2));
+        assertEquals(0, a.size());
+    }
+
+    @Test
+    public void testToString() {
+        final LongArray a = new LongArray(0);
+        assertEquals("{}", a.toString());
+        a.add(5);
+        assertEquals("{5}", a.toString());
+        a.add(-1);
+        assertEquals("{5,-1}", a.toString());
+        a.clear();
+        assertEquals("{}", a.toString());
+    }
+
+    @Test
+    public void testGrow() {
+        final LongArray a = new LongArray(0);
+        for (int i = 0; i < 1000; i++) {
+            a.add(i);
+        }
+        assertEquals(1000, a.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals((long) i, a.get(i));
+        }
+        assertEquals(999, a.indexOf(999));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.ldt.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongIntMapTest {
+    private static final int MASK = IntIntMap.capacityFor(16) - 1;
+
+    // Returns the keys whose probe sequence starts at the slot of a map of 16 entries.
+    private static long[] keysAtSlot(int slot, int count) {
+        final long[] keys = new long[count];
+        int n = 0;
+        for (long k = 1L << 32; n < count; k++) {
+            if ((LongIntMap.mix(k) & MASK) == slot) {
+                keys[n++] = k;
+            }
+        }
+        return keys;
+    }
+
+    private static void assertSame(Map<Long, Integer> expected, LongIntMap map) {
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+            assertTrue(map.containsKey(e.getKey()));
+            assertEquals((int) e.getValue(), map.get(e.getKey(), -1));
+        }
+        final HashMap<Long, Integer> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    public void testCollisionWraparound() {
+        // The keys of the last slot wrap to the first slots, where other keys collide.
+        final long[] last = keysAtSlot(MASK, 4);
+        final long[] first = keysAtSlot(0, 3);
+        final LongIntMap map = new LongIntMap();
+        final HashMap<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < last.length; i++) {
+            map.put(last[i], i);
+            expected.put(last[i], i);
+            if (i < first.length) {
+                map.put(first[i], 100 + i);
+                expected.put(first[i], 100 + i);
+            }
+        }
+        assertSame(expected, map);
+        for (long k : new long[] {last[0], first[1], last[2], first[0]}) {
+            assertTrue(map.remove(k));
+            assertFalse(map.remove(k));
+            expected.remove(k);
+            assertSame(expected, map);
+        }
+        map.put(last[0], 7);
+        expected.put(last[0], 7);
+        assertSame(expected, map);
+    }
+
+    @Test
+    public void testRandomAgainstHashMap() {
+        final Random random = new Random(1);
+        final LongIntMap map = new LongIntMap(4);
+        final HashMap<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            // Keys differing only in the high bits, and 0 which is the free key.
+            final long key = (random.nextInt(129) - 64) * 0x100000000L;
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    map.put(key, i);
+                    expected.put(key, i);
+                    break;
+                case 2:
+                    assertEquals(expected.remove(key) != null, map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.getOrDefault(key, 0) + 1, map.increment(key, 1));
+                    expected.merge(key, 1, Integer::sum);
+                    break;
+            }
+            if (i % 100 == 0) {
+                assertSame(expected, map);
+            }
+        }
+        assertSame(expected, map);
+        map.clear();
+        expected.clear();
+        assertSame(expected, map);
+    }
+
+    @Test
+    public void testRehash() {
+        final LongIntMap map = new LongIntMap(4);
+        for (int i = 0; i < 10000; i++) {
+            map.put(i * 0x100000001L, i);
+        }
+        assertEquals(10000, map.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, map.get(i * 0x100000001L, -1));
+        }
+        assertFalse(map.containsKey(1));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Riddle Hsu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rh.ldt.util;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class StringTableTest {
+
+    @Test
+    public void testInternBytesAgreesWithString() {
+        final String[] strings = {"", "a", "Landroid/app/Activity;", "onCreate", "\u4e2d\u6587",
+                "caf\u00e9", "Ljava/lang/String;", "a"};
+        final StringTable table = new StringTable(2);
+        final StringTable bytesTable = new StringTable(2);
+        for (String s : strings) {
+            // Surround the bytes to check the offset and length are used.
+            final byte[] b = ("<<" + s + ">>").getBytes(StandardCharsets.UTF_8);
+            final int len = s.getBytes(StandardCharsets.UTF_8).length;
+            final int id = table.intern(s);
+            assertEquals(id, table.intern(b, 2, len));
+            assertEquals(id, bytesTable.intern(b, 2, len));
+            assertEquals(id, bytesTable.intern(s));
+            assertEquals(s, bytesTable.get(id));
+        }
+        assertEquals(strings.length - 1, table.size());
+        assertEquals(table.size(), bytesTable.size());
+    }
+
+    @Test
+    public void testRehash() {
+        final StringTable table = new StringTable(4);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, table.intern("s" + i));
+        }
+        assertEquals(10000, table.size());
+        for (int i = 0; i < 10000; i++) {
+            final byte[] b = ("s" + i).getBytes(StandardCharsets.US_ASCII);
+            assertEquals(i, table.intern(b, 0, b.length));
+            assertEquals(i, table.indexOf("s" + i));
+            assertEquals("s" + i, table.get(i));
+        }
+        assertEquals(-1, table.indexOf("s10000"));
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(-1, table.indexOf("s0"));
+        assertEquals(0, table.intern("t"));
+    }
+}